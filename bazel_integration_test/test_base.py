@@ -16,6 +16,7 @@
 import locale
 import os
 import os.path
+import shutil
 import subprocess
 import sys
 import tempfile
@@ -38,6 +39,10 @@ class EnvVarUndefinedError(Error):
   def __init__(self, name):
     Error.__init__(self, 'Environment variable "%s" is not defined' % name)
 
+# Appended by the bazel_binary repository rule to the BUILD files of the install
+# base.
+_RENAMED_BUILD_FILE_SUFFIX = '.install_base'
+
 
 class TestBase(unittest.TestCase):
 
@@ -45,6 +50,7 @@ class TestBase(unittest.TestCase):
   _temp = None
   _tests_root = None
   _test_cwd = None
+  _install_base = None
 
   def setUp(self):
     unittest.TestCase.setUp(self)
@@ -70,14 +76,48 @@ class TestBase(unittest.TestCase):
         self.bazelVersion = "HEAD"
 
   def _SetAndUnpackBazel(self, bazel):
+    self._install_base = self._PrebuiltInstallBase(bazel)
     bazel = self.Rlocation(bazel)
     if os.path.exists(bazel):
       self._bazel = bazel
-      # Unpackag Bazel
-      self.RunBazel(["help"])
+      if not self._install_base:
+        # Unpackag Bazel
+        self.RunBazel(["help"])
       return True
     return False
 
+  def _PrebuiltInstallBase(self, bazel):
+    """Returns a copy of the install base extracted by the bazel_binary rule.
+
+    The install base in the runfiles is read-only when the test is sandboxed,
+    while the Bazel client updates the install base it starts from, so it is
+    copied under TEST_TMPDIR, with the modification times the client checks.
+    Returns None if the rule did not extract Bazel.
+    """
+    # Runfiles paths always use forward slashes, even on Windows.
+    directory = bazel.rsplit('/', 1)[0]
+    marker = self.Rlocation(directory + '/install_base.complete')
+    prebuilt = self.Rlocation(directory + '/install_base')
+    if (not marker or not os.path.exists(marker) or not prebuilt or
+        not os.path.isdir(prebuilt)):
+      return None
+    install_base = os.path.join(
+        TestBase.GetEnv('TEST_TMPDIR'), 'install_base', directory)
+    if not os.path.exists(install_base + '.complete'):
+      if os.path.exists(install_base):
+        shutil.rmtree(install_base)
+      shutil.copytree(prebuilt, install_base)
+      # The repository rule renamed the BUILD files, so that they do not split
+      # the install base in packages.
+      for root, _, files in os.walk(install_base):
+        for name in files:
+          if name in ('BUILD' + _RENAMED_BUILD_FILE_SUFFIX,
+                      'BUILD.bazel' + _RENAMED_BUILD_FILE_SUFFIX):
+            original = name[:-len(_RENAMED_BUILD_FILE_SUFFIX)]
+            os.rename(os.path.join(root, name), os.path.join(root, original))
+      open(install_base + '.complete', 'w').close()
+    return install_base
+
   def SetBazelVersion(self, version):
     """Set the bazel version to use, e.g. 0.5.4."""
     suffix = ".exe" if self.IsWindows() else ""
@@ -208,16 +248,18 @@ class TestBase(unittest.TestCase):
     """
     if not self._bazel:
       self.fail("No version of bazel specified, please use SetBazelVersion.")
+    startup_options = [
+        '--bazelrc=/dev/null',
+        '--nomaster_bazelrc',
+        # TODO(dmarting): these are the default for the Eclipse plugin but
+        # not for Bazel, we need to figure out what are the good default
+        '--output_user_root=' + self._output_user_root,
+        '--max_idle_secs=10'
+    ]
+    if self._install_base:
+      startup_options.append('--install_base=' + self._install_base)
     return self.RunProgram(
-        [
-            self._bazel,
-            '--bazelrc=/dev/null',
-            '--nomaster_bazelrc',
-            # TODO(dmarting): these are the default for the Eclipse plugin but
-            # not for Bazel, we need to figure out what are the good default
-            '--output_user_root=' + self._output_user_root,
-            '--max_idle_secs=10'
-        ] + args,
+        [self._bazel] + startup_options + args,
         env_remove,
         env_add)
 
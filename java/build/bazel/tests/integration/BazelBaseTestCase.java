@@ -15,6 +15,8 @@
 package build.bazel.tests.integration;
 
 import java.io.IOException;
+import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 
@@ -28,8 +30,18 @@ public abstract class BazelBaseTestCase {
     WorkspaceDriver.setUpClass();
   }
 
+  @AfterClass
+  public static void tearDownClass() throws IOException, InterruptedException {
+    WorkspaceDriver.tearDownClass();
+  }
+
   @Before
   public void setUp() throws IOException, InterruptedException {
     driver.setUp();
   }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    driver.tearDown();
+  }
 }
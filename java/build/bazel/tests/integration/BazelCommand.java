@@ -14,16 +14,30 @@
 
 package build.bazel.tests.integration;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /** This class holds the result of a Bazel invocation. */
 public class BazelCommand {
@@ -31,13 +45,24 @@ public class BazelCommand {
   private final Command delegate;
   private final List<String> args;
   private final int exitCode;
-  private final WorkspaceDriver driver;
+  private final Path workspace;
+  // The trace profile written by the build, null if none was requested.
+  private final Path profile;
+  private final Set<Path> changedFiles;
 
-  private BazelCommand(Command delegate, List<String> args, int exitCode, WorkspaceDriver driver) {
+  private BazelCommand(
+      Command delegate,
+      List<String> args,
+      int exitCode,
+      Path workspace,
+      Path profile,
+      Set<Path> changedFiles) {
     this.delegate = delegate;
     this.args = args;
     this.exitCode = exitCode;
-    this.driver = driver;
+    this.workspace = workspace;
+    this.profile = profile;
+    this.changedFiles = changedFiles;
   }
 
   /** Returns the exit code. */
@@ -45,58 +70,231 @@ public class BazelCommand {
     return exitCode;
   }
 
-  /** Returns the list of lines of the standard error stream. */
+  /** Returns the workspace the command was run in. */
+  public Path workspace() {
+    return workspace;
+  }
+
+  /** Returns true if the invocation was terminated early by a {@link Builder#abortOn} condition. */
+  public boolean aborted() {
+    return delegate.aborted();
+  }
+
+  /**
+   * Returns true if the invocation did not finish before the deadline set with {@link
+   * Builder#withTimeout} and was killed.
+   */
+  public boolean timedOut() {
+    return delegate.timedOut();
+  }
+
+  /**
+   * Returns what was collected when the invocation timed out: the tail of its output and the thread
+   * dump of the Bazel server. Empty if the invocation did not time out.
+   */
+  public List<String> timeoutDiagnostics() {
+    return delegate.getTimeoutDiagnostics();
+  }
+
+  /**
+   * Returns the list of lines of the standard error stream. The lines spilled to disk (see {@link
+   * Builder#withOutputSpilledAfter}) are read back as they are accessed.
+   */
   public List<String> errorLines() {
     return delegate.getErrorLines();
   }
 
-  /** Returns the list of lines of the standard output stream. */
+  /**
+   * Returns the list of lines of the standard output stream. The lines spilled to disk (see {@link
+   * Builder#withOutputSpilledAfter}) are read back as they are accessed.
+   */
   public List<String> outputLines() {
     return delegate.getOutputLines();
   }
 
+  /**
+   * Returns a stream over the lines of the standard error stream, which reads the lines spilled to
+   * disk in one pass (see {@link Builder#withOutputSpilledAfter}). The stream should be closed
+   * after use.
+   */
+  public Stream<String> errorLinesStream() {
+    return delegate.errorLinesStream();
+  }
+
+  /**
+   * Returns a stream over the lines of the standard output stream, which reads the lines spilled to
+   * disk in one pass (see {@link Builder#withOutputSpilledAfter}). The stream should be closed
+   * after use.
+   */
+  public Stream<String> outputLinesStream() {
+    return delegate.outputLinesStream();
+  }
+
+  /**
+   * Returns the files of the workspace, relative to it, written by the driver since the previous
+   * invocation in the workspace, that is the changes this invocation had to pick up. See {@link
+   * WorkspaceDriver#skipUnchangedWrites(boolean)}.
+   */
+  public Set<Path> changedFiles() {
+    return changedFiles;
+  }
+
+  /**
+   * Returns the timing of the actions of the build, which must have been profiled, see {@link
+   * WorkspaceDriver#profileActions(int)}.
+   */
+  public ExecutionProfile executionProfile() throws IOException {
+    if (profile == null) {
+      throw new IllegalStateException(
+          "No profile was written, see WorkspaceDriver#profileActions(int): " + args);
+    }
+    return ExecutionProfile.read(profile);
+  }
+
+  /**
+   * Returns the summary of the processes spawned by the build, which tells how many actions were
+   * cache hits, or {@code 0 processes} if the command did not build anything.
+   */
+  public ProcessSummary processSummary() {
+    try (Stream<String> lines = errorLinesStream()) {
+      return ProcessSummary.parse(lines::iterator);
+    }
+  }
+
+  /**
+   * Returns the number of actions served by a disk or remote cache, see {@link #processSummary}.
+   */
+  public int cacheHits() {
+    return processSummary().cacheHits();
+  }
+
+  /** Returns the number of actions executed, see {@link #processSummary}. */
+  public int cacheMisses() {
+    return processSummary().cacheMisses();
+  }
+
+  /**
+   * Throws an {@link AssertionError} unless all the patterns of {@code matcher} are found in the
+   * standard error stream.
+   */
+  public BazelCommand assertErrorLinesMatchAll(OutputMatcher matcher) {
+    return assertMatchesAll("STDERR", this::errorLinesStream, matcher);
+  }
+
+  /**
+   * Throws an {@link AssertionError} unless all the patterns of {@code matcher} are found in the
+   * standard output stream.
+   */
+  public BazelCommand assertOutputLinesMatchAll(OutputMatcher matcher) {
+    return assertMatchesAll("STDOUT", this::outputLinesStream, matcher);
+  }
+
+  /**
+   * Throws an {@link AssertionError} if any of the patterns of {@code matcher} is found in the
+   * standard error stream.
+   */
+  public BazelCommand assertErrorLinesMatchNone(OutputMatcher matcher) {
+    return assertMatchesNone("STDERR", this::errorLinesStream, matcher);
+  }
+
+  /**
+   * Throws an {@link AssertionError} if any of the patterns of {@code matcher} is found in the
+   * standard output stream.
+   */
+  public BazelCommand assertOutputLinesMatchNone(OutputMatcher matcher) {
+    return assertMatchesNone("STDOUT", this::outputLinesStream, matcher);
+  }
+
+  private BazelCommand assertMatchesAll(
+      String stream, Supplier<Stream<String>> lines, OutputMatcher matcher) {
+    Set<String> missing;
+    try (Stream<String> content = lines.get()) {
+      missing = matcher.missingIn(content);
+    }
+    if (!missing.isEmpty()) {
+      throw new AssertionError(this + "==> " + stream + " does not contain " + missing);
+    }
+    return this;
+  }
+
+  private BazelCommand assertMatchesNone(
+      String stream, Supplier<Stream<String>> lines, OutputMatcher matcher) {
+    Set<String> found;
+    try (Stream<String> content = lines.get()) {
+      found = matcher.findIn(content);
+    }
+    if (!found.isEmpty()) {
+      throw new AssertionError(this + "==> " + stream + " contains " + found);
+    }
+    return this;
+  }
+
   /**
    * Returns a description/summary of the command arguments, standard error and output stream. This
-   * method can be used for troubleshooting and error reporting.
+   * method can be used for troubleshooting and error reporting. It is bounded: only the head and
+   * the tail of the output streams are kept and the listing of the workspace is capped, see {@link
+   * #writeDiagnosticReport(Path)} for a larger report.
    */
   public String toString() {
-    String description =
-        "BAZEL COMMAND: "
-            + args
-            + "\n"
-            + "EXIT CODE: "
-            + exitCode
-            + "\nSTDOUT:\n    "
-            + String.join("\n    ", outputLines())
-            + "\nSTDERR:\n    "
-            + String.join("\n    ", errorLines())
-            + "\nWORKSPACE CONTENTS:\n    "
-            + driver
-                .workspaceDirectoryContents()
-                .stream()
-                .map(Path::toString)
-                .collect(Collectors.joining("\n    "))
-            + "\n";
-
-    return description;
+    return report().render(DiagnosticReport.SUMMARY);
+  }
+
+  /**
+   * Writes a description of the command to {@code file}, with more of the output streams and of
+   * the workspace than {@link #toString()}, still within limits. The output streams are copied
+   * without being loaded in memory.
+   */
+  public void writeDiagnosticReport(Path file) throws IOException {
+    report().writeTo(file, DiagnosticReport.FILE);
+  }
+
+  private DiagnosticReport report() {
+    return new DiagnosticReport(
+        args,
+        exitCode + (timedOut() ? " (TIMED OUT)" : ""),
+        this::outputLinesStream,
+        this::errorLinesStream,
+        workspace);
   }
 
   public static class Builder {
+    private static final int HANG_DIAGNOSTICS_TAIL_LINES = 100;
+    private static final Duration THREAD_DUMP_DELAY = Duration.ofSeconds(2);
+    // The commands accepting the options of WorkspaceDriver#buildOptions().
+    private static final Set<String> BUILD_COMMANDS =
+        new HashSet<>(Arrays.asList("build", "test", "run", "coverage", "cquery", "aquery"));
+    private static final ExecutorService INVOCATION_EXECUTOR =
+        Executors2.cachedDaemonPool("bazel-invocation");
+
     private final WorkspaceDriver driver;
+    private final Path workspace;
     private final Path outputUserRoot;
+    private final List<String> startupOptions;
     private final RepositoryCache repositoryCache;
     private final List<String> args;
     private Path bazelrcFile = null;
     private Map<String, String> environment = new HashMap<>();
     private Path workingDirectory = Paths.get("");
+    private final List<Consumer<String>> outputListeners = new ArrayList<>();
+    private final List<Consumer<String>> errorListeners = new ArrayList<>();
+    private final List<Predicate<String>> abortConditions = new ArrayList<>();
+    private int maxLinesInMemory = -1;
+    private Duration timeout = null;
+    private boolean batchMode;
+    private Path profile = null;
+    private Set<Path> changedFiles = Collections.emptySet();
 
     Builder(
         WorkspaceDriver driver,
         Path outputUserRoot,
+        List<String> startupOptions,
         RepositoryCache repositoryCache,
         List<String> args) {
       this.driver = driver;
+      this.workspace = driver.currentWorkspace();
       this.outputUserRoot = outputUserRoot;
+      this.startupOptions = startupOptions;
+      this.batchMode = driver.batchMode();
       this.repositoryCache = repositoryCache;
       this.args = Collections.unmodifiableList(args);
     }
@@ -119,55 +317,264 @@ public class BazelCommand {
       return this;
     }
 
+    /**
+     * Adds a listener called with each line of the standard output stream while the command runs.
+     */
+    public Builder withOutputListener(Consumer<String> listener) {
+      this.outputListeners.add(listener);
+      return this;
+    }
+
+    /**
+     * Adds a listener called with each line of the standard error stream while the command runs.
+     * Bazel reports its progress on the standard error stream.
+     */
+    public Builder withErrorListener(Consumer<String> listener) {
+      this.errorListeners.add(listener);
+      return this;
+    }
+
+    /** Copies both streams to the test log as the lines arrive. */
+    public Builder withOutputStreamedToTestLog() {
+      withOutputListener(System.out::println);
+      withErrorListener(System.err::println);
+      return this;
+    }
+
+    /**
+     * Terminates the invocation as soon as a line of either stream matches {@code condition}, see
+     * {@link BazelCommand#aborted()}.
+     */
+    public Builder abortOn(Predicate<String> condition) {
+      this.abortConditions.add(condition);
+      return this;
+    }
+
+    /**
+     * Keeps only the first {@code maxLinesInMemory} lines of each stream in memory and spills the
+     * rest to a file, deleted when the driver is torn down. Use it for commands with huge outputs,
+     * such as {@code query} or {@code aquery} on large workspaces, and read them back with {@link
+     * BazelCommand#outputLinesStream()}.
+     */
+    public Builder withOutputSpilledAfter(int maxLinesInMemory) {
+      if (maxLinesInMemory < 0) {
+        throw new IllegalArgumentException("maxLinesInMemory must not be negative");
+      }
+      this.maxLinesInMemory = maxLinesInMemory;
+      return this;
+    }
+
+    /**
+     * Runs this invocation with the {@code --batch} startup option: Bazel runs in a single process
+     * which exits with the command, no server is started or reused. Defaults to {@link
+     * WorkspaceDriver#useBatchMode(boolean)}.
+     */
+    public Builder inBatchMode(boolean batchMode) {
+      this.batchMode = batchMode;
+      return this;
+    }
+
+    /**
+     * Kills the invocation if it does not finish within {@code timeout}. Before killing the Bazel
+     * client, its server and all their descendants, the tail of the output and a thread dump of the
+     * server are printed to the test log and kept in {@link BazelCommand#timeoutDiagnostics()}. The
+     * returned command is then marked as {@link BazelCommand#timedOut() timed out}.
+     */
+    public Builder withTimeout(Duration timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
     private Command build() throws IOException {
       String bazelRcPath =
           bazelrcFile == null
               ? "/dev/null"
-              : driver.currentWorkspace().resolve(bazelrcFile).toString();
+              : workspace.resolve(bazelrcFile).toString();
 
-      List<String> command =
-          new ArrayList<>(
-              Arrays.asList(
-                  driver.bazelBinPath().toString(),
-                  "--output_user_root=" + outputUserRoot,
-                  "--nomaster_bazelrc",
-                  "--max_idle_secs=10",
-                  "--bazelrc=" + bazelRcPath));
+      List<String> command = new ArrayList<>();
+      command.add(driver.bazelBinPath().toString());
+      command.addAll(startupOptions);
+      command.add("--bazelrc=" + bazelRcPath);
+      if (batchMode) {
+        command.add("--batch");
+      } else {
+        driver.trackServer(driver.bazelBinPath(), startupOptions, workspace);
+      }
 
       // This would split the args "run //target -- hello world" into
       // "run //target" and "-- hello world" ("hello world" being passed to the executable
       // to run).
+      List<String> options = new ArrayList<>(repositoryCache.bazelOptions());
+      changedFiles = driver.takeChangedFiles(workspace);
+      profile = null;
+      if (!args.isEmpty() && BUILD_COMMANDS.contains(args.get(0))) {
+        options.addAll(driver.buildOptions());
+        Path profileFile =
+            WorkspaceDriver.temporaryDirectory()
+                .resolve("profiles")
+                .resolve("profile-" + UUID.randomUUID() + ".json");
+        List<String> profileOptions = driver.profileOptions(profileFile);
+        if (!profileOptions.isEmpty()) {
+          Files.createDirectories(profileFile.getParent());
+          profile = profileFile;
+          options.addAll(profileOptions);
+        }
+      }
       int terminator = args.indexOf("--");
       if (terminator == -1) {
         command.addAll(args);
-        command.addAll(repositoryCache.bazelOptions());
+        command.addAll(options);
       } else {
         command.addAll(args.subList(0, terminator));
-        command.addAll(repositoryCache.bazelOptions());
+        command.addAll(options);
         command.addAll(args.subList(terminator, args.size()));
       }
 
-      Path relativeToWorkspaceFullPath = driver.currentWorkspace().resolve(workingDirectory);
+      Path relativeToWorkspaceFullPath = workspace.resolve(workingDirectory);
+
+      Command.Builder builder =
+          Command.builder()
+              .setDirectory(relativeToWorkspaceFullPath)
+              .addArguments(command)
+              .withEnvironment(environment);
+      outputListeners.forEach(builder::addOutputListener);
+      errorListeners.forEach(builder::addErrorListener);
+      abortConditions.forEach(builder::abortOn);
+      if (maxLinesInMemory >= 0) {
+        builder.spillOutputAfter(maxLinesInMemory, driver.spillDirectory());
+      }
+      if (timeout != null) {
+        builder.withTimeout(timeout, this::collectHangDiagnostics);
+      }
+      if (!batchMode) {
+        builder.onAbort(aborted -> killServer());
+      }
+      return builder.build();
+    }
+
+    /**
+     * Collects the tail of the output and a thread dump of the Bazel server, then kills the server
+     * tree: the server is not a descendant of the client so killing the client would leave it
+     * running.
+     */
+    private List<String> collectHangDiagnostics(Command command)
+        throws IOException, InterruptedException {
+      List<String> diagnostics = new ArrayList<>();
+      diagnostics.add("BAZEL COMMAND TIMED OUT AFTER " + timeout + ": " + args);
+      diagnostics.add("STDOUT (TAIL):");
+      diagnostics.addAll(tail(command.outputLinesStream(), HANG_DIAGNOSTICS_TAIL_LINES));
+      diagnostics.add("STDERR (TAIL):");
+      diagnostics.addAll(tail(command.errorLinesStream(), HANG_DIAGNOSTICS_TAIL_LINES));
 
-      return Command.builder()
-          .setDirectory(relativeToWorkspaceFullPath)
-          .addArguments(command)
-          .withEnvironment(environment)
-          .build();
+      Path serverDirectory = serverDirectory();
+      long pid = serverPid();
+      if (pid != -1) {
+        // The server JVM prints the thread dump to its standard output, redirected to jvm.out.
+        Path jvmOut = serverDirectory.resolve("jvm.out");
+        long offset = Files.exists(jvmOut) ? Files.size(jvmOut) : 0;
+        ProcessTrees.requestThreadDump(pid);
+        Thread.sleep(THREAD_DUMP_DELAY.toMillis());
+        diagnostics.add("SERVER THREADS (pid " + pid + "):");
+        if (Files.exists(jvmOut)) {
+          byte[] content = Files.readAllBytes(jvmOut);
+          int from = (int) Math.min(offset, content.length);
+          diagnostics.addAll(
+              Arrays.asList(new String(content, from, content.length - from, UTF_8).split("\n")));
+        }
+        ProcessTrees.killTree(pid);
+      }
+      System.err.println(String.join("\n", diagnostics));
+      return diagnostics;
     }
 
-    /** Runs the command, prints its output to console and
-     * returns an object to inspect the invocation result. */
+    /**
+     * Kills the Bazel server tree, which keeps running the command and holding the lock of the
+     * output base when only the client is killed: the server is not a descendant of the client.
+     */
+    private void killServer() throws IOException, InterruptedException {
+      long pid = serverPid();
+      if (pid != -1) {
+        ProcessTrees.killTree(pid);
+      }
+    }
+
+    private Path serverDirectory() throws IOException {
+      return WorkspaceDriver.outputBase(outputUserRoot, workspace).resolve("server");
+    }
+
+    /** Returns the pid of the server of the workspace, or -1 if no server runs. */
+    private long serverPid() throws IOException {
+      Path pidFile = serverDirectory().resolve("server.pid.txt");
+      if (!Files.exists(pidFile)) {
+        return -1;
+      }
+      return Long.parseLong(new String(Files.readAllBytes(pidFile), UTF_8).trim());
+    }
+
+    /** Returns the last {@code count} lines, reading the stream once and closing it. */
+    private static Deque<String> tail(Stream<String> lines, int count) {
+      Deque<String> tail = new ArrayDeque<>();
+      try (Stream<String> stream = lines) {
+        stream.forEachOrdered(
+            line -> {
+              if (tail.size() == count) {
+                tail.removeFirst();
+              }
+              tail.addLast(line);
+            });
+      }
+      return tail;
+    }
+
+    /**
+     * Runs the command, streams its output to console while it runs and returns an object to
+     * inspect the invocation result.
+     */
     public BazelCommand runVerbose() throws IOException, InterruptedException {
+      withOutputStreamedToTestLog();
       BazelCommand command = run();
-      System.out.println(command.toString());
+      System.out.println("BAZEL COMMAND: " + args + "\nEXIT CODE: " + command.exitCode());
       return command;
     }
 
     /** Runs the command and returns an object to inspect the invocation result. */
     public BazelCommand run() throws IOException, InterruptedException {
       Command cmd = build();
-      return new BazelCommand(cmd, args, cmd.run(), driver);
+      return new BazelCommand(cmd, args, cmd.run(), workspace, profile, changedFiles);
+    }
+
+    /**
+     * Runs the command in the background and returns a future of the invocation result.
+     *
+     * <p>The command runs in the workspace that was current when the builder was created, so a test
+     * can start an invocation, switch to a {@link WorkspaceDriver#newWorkspace() new workspace} and
+     * start another one there while the first is still running. Cancelling the future terminates
+     * the invocation.
+     */
+    public CompletableFuture<BazelCommand> runAsync() throws IOException {
+      Command cmd = build();
+      Path profile = this.profile;
+      Set<Path> changedFiles = this.changedFiles;
+      CompletableFuture<BazelCommand> result = new CompletableFuture<>();
+      INVOCATION_EXECUTOR.execute(
+          () -> {
+            try {
+              result.complete(
+                  new BazelCommand(cmd, args, cmd.run(), workspace, profile, changedFiles));
+            } catch (IOException | RuntimeException e) {
+              result.completeExceptionally(e);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              result.completeExceptionally(e);
+            }
+          });
+      result.whenComplete(
+          (command, failure) -> {
+            if (result.isCancelled()) {
+              cmd.abort();
+            }
+          });
+      return result;
     }
 
     /**
@@ -177,7 +584,13 @@ public class BazelCommand {
     public BazelCommand mustRunAndReturnExitCode(int exitCode) throws IOException, InterruptedException {
       BazelCommand cmd = run();
       if (cmd.exitCode() != exitCode) {
-        throw new RuntimeException(cmd + "==> exit code != " + exitCode);
+        DiagnosticReport report = cmd.report();
+        Path file = report.writeToUndeclaredOutputs();
+        throw new RuntimeException(
+            report.render(DiagnosticReport.SUMMARY)
+                + (file == null ? "" : "FULL REPORT: " + file + "\n")
+                + "==> exit code != "
+                + exitCode);
       }
       return cmd;
     }
@@ -0,0 +1,119 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the output bases in which Bazel servers were started, so that they can be shut
+ * down deterministically instead of idling until {@code --max_idle_secs} expires. In parallel CI,
+ * dozens of idle servers would otherwise pile up.
+ */
+final class BazelServers {
+
+  private final Map<Path, Server> servers = new LinkedHashMap<>();
+
+  /**
+   * Records that {@code bazel} may start a server for {@code workspace}, with the given startup
+   * options. Tracking the same output base again is a no-op.
+   */
+  synchronized void track(
+      Path bazel, List<String> startupOptions, Path outputUserRoot, Path workspace)
+      throws IOException {
+    Path outputBase = WorkspaceDriver.outputBase(outputUserRoot, workspace);
+    if (!servers.containsKey(outputBase)) {
+      servers.put(outputBase, new Server(bazel, startupOptions, workspace, outputBase));
+    }
+  }
+
+  /**
+   * Shuts down the server started by {@code bazel} for {@code workspace}, if it is still running,
+   * and stops tracking it.
+   */
+  void shutdown(Path outputUserRoot, Path workspace) throws IOException, InterruptedException {
+    Server server;
+    synchronized (this) {
+      server = servers.remove(WorkspaceDriver.outputBase(outputUserRoot, workspace));
+    }
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  /** Returns the output bases currently tracked. */
+  synchronized List<Path> outputBases() {
+    return Collections.unmodifiableList(new ArrayList<>(servers.keySet()));
+  }
+
+  /**
+   * Shuts down all the servers that are still running and stops tracking them. All the servers are
+   * shut down even if one of them fails, the first failure is then rethrown.
+   */
+  void shutdownAll() throws IOException, InterruptedException {
+    List<Server> toShutdown;
+    synchronized (this) {
+      toShutdown = new ArrayList<>(servers.values());
+      servers.clear();
+    }
+    IOException failure = null;
+    for (Server server : toShutdown) {
+      try {
+        server.shutdown();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static final class Server {
+    private final Path bazel;
+    private final List<String> startupOptions;
+    private final Path workspace;
+    private final Path outputBase;
+
+    private Server(Path bazel, List<String> startupOptions, Path workspace, Path outputBase) {
+      this.bazel = bazel;
+      this.startupOptions = startupOptions;
+      this.workspace = workspace;
+      this.outputBase = outputBase;
+    }
+
+    private void shutdown() throws IOException, InterruptedException {
+      // Do not start a server only to shut it down.
+      if (!Files.exists(outputBase.resolve("server").resolve("server.pid.txt"))
+          || !Files.isDirectory(workspace)) {
+        return;
+      }
+      List<String> command = new ArrayList<>();
+      command.add(bazel.toString());
+      command.addAll(startupOptions);
+      command.add("--bazelrc=/dev/null");
+      command.add("shutdown");
+      Command.builder().setDirectory(workspace).addArguments(command).build().run();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+/** How a file is duplicated into a scratch directory, from the cheapest to the most expensive. */
+public enum CloneStrategy {
+  /**
+   * A copy-on-write clone ({@code cp --reflink=always} on Linux, {@code cp -c} on macOS): a new
+   * file sharing the blocks of the original until either is modified.
+   */
+  REFLINK,
+  /**
+   * A hard link to the original. Changing the permissions or the modification time of the clone
+   * changes those of the original.
+   */
+  HARDLINK,
+  /** A plain copy of the content. */
+  COPY
+}
@@ -18,17 +18,29 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * A utility class to spawn a command and get its output.
@@ -37,17 +49,59 @@ import java.util.Objects;
  */
 public final class Command {
 
+  private static final AtomicInteger ACTIVE_PUMPS = new AtomicInteger();
+  private static final ExecutorService PUMP_EXECUTOR = newPumpExecutor();
+  private static final Duration PUMP_GRACE_PERIOD = Duration.ofSeconds(5);
+  // How often run() checks whether the command was aborted while its process runs.
+  private static final long ABORT_POLL_MILLIS = 50;
+
+  /**
+   * Called when a command runs longer than its timeout, right before its process is killed. Returns
+   * diagnostic lines, exposed by {@link #getTimeoutDiagnostics()}.
+   */
+  @FunctionalInterface
+  interface TimeoutHandler {
+    List<String> onTimeout(Command command) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Called when a command is aborted, right before its process is killed, to stop the processes
+   * working for it which are not its descendants.
+   */
+  @FunctionalInterface
+  interface AbortHandler {
+    void onAbort(Command command) throws IOException, InterruptedException;
+  }
+
   private final Path directory;
   private final List<String> args;
-  private final List<String> stderr = Collections.synchronizedList(new LinkedList<>());
-  private final List<String> stdout = Collections.synchronizedList(new LinkedList<>());
+  private final OutputCapture stderr;
+  private final OutputCapture stdout;
   private final Map<String, String> environment;
+  private final List<Consumer<String>> outputListeners;
+  private final List<Consumer<String>> errorListeners;
+  private final Predicate<String> abortCondition;
+  private final Duration timeout;
+  private final TimeoutHandler onTimeout;
+  private final AbortHandler onAbort;
   private boolean executed = false;
+  private volatile boolean timedOut = false;
+  private volatile List<String> timeoutDiagnostics = Collections.emptyList();
+  private volatile boolean aborted = false;
+  private volatile RuntimeException listenerFailure = null;
 
-  private Command(Path directory, List<String> args, Map<String, String> environment) {
-    this.directory = directory;
-    this.args = args;
-    this.environment = environment;
+  private Command(Builder builder) {
+    this.directory = builder.directory;
+    this.args = Collections.unmodifiableList(new ArrayList<>(builder.args));
+    this.environment = Collections.unmodifiableMap(builder.environment);
+    this.outputListeners = Collections.unmodifiableList(new ArrayList<>(builder.outputListeners));
+    this.errorListeners = Collections.unmodifiableList(new ArrayList<>(builder.errorListeners));
+    this.abortCondition = builder.abortCondition;
+    this.timeout = builder.timeout;
+    this.onTimeout = builder.onTimeout;
+    this.onAbort = builder.onAbort;
+    this.stdout = builder.newCapture("stdout");
+    this.stderr = builder.newCapture("stderr");
   }
 
   /**
@@ -63,49 +117,237 @@ public final class Command {
     builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
     builder.redirectError(ProcessBuilder.Redirect.PIPE);
     Process process = builder.start();
-    Thread err = streamToLinesThread(process.getErrorStream(), stderr);
+    Future<?> err = pump(process.getErrorStream(), stderr, errorListeners);
     // seriously? That's stdout, why is it called getInputStream???
-    Thread out = streamToLinesThread(process.getInputStream(), stdout);
-    int exitCode = process.waitFor();
-    if (err != null) {
-      err.join();
+    Future<?> out = pump(process.getInputStream(), stdout, outputListeners);
+    int exitCode;
+    if (waitForExitOrAbort(process)) {
+      exitCode = process.waitFor();
+    } else if (aborted) {
+      exitCode = killOnAbort(process);
+    } else {
+      timedOut = true;
+      exitCode = killOnTimeout(process);
     }
-    if (out != null) {
-      out.join();
+    if (timedOut || aborted) {
+      // A descendant that survived may still hold the pipes open, do not wait for it forever.
+      awaitPump(err, PUMP_GRACE_PERIOD);
+      awaitPump(out, PUMP_GRACE_PERIOD);
+    } else {
+      awaitPump(err, null);
+      awaitPump(out, null);
+    }
+    stderr.close();
+    stdout.close();
+    if (listenerFailure != null) {
+      throw listenerFailure;
     }
 
     return exitCode;
   }
 
-  private static Thread streamToLinesThread(
-      final InputStream inputStream, final List<String> lines) {
-    Thread thread =
-        new Thread(
-            () -> {
-              new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-                  .lines()
-                  .forEach(lines::add);
-            });
-    thread.start();
-    return thread;
+  /**
+   * Returns the number of output pumps currently draining the streams of a process, across all the
+   * commands. It should go back to zero once all the commands have returned.
+   */
+  public static int activePumps() {
+    return ACTIVE_PUMPS.get();
   }
 
-  /** Returns the list of lines of the standard error stream. */
-  public List<String> getErrorLines() {
-    synchronized (stderr) {
-      return copyToUnmodifiableList(stderr);
+  /**
+   * Returns the executor shared by all the commands to drain the output streams of their process.
+   * Virtual threads are used when the runtime supports them (Java 21 and later). Otherwise a pool
+   * of daemon threads is used, which grows as needed since each pump blocks until its process
+   * exits, and idle threads are reused by the next commands.
+   */
+  private static ExecutorService newPumpExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return Executors2.cachedDaemonPool("command-output-pump");
     }
   }
 
-  /** Returns the list of lines of the standard output stream. */
-  public List<String> getOutputLines() {
-    synchronized (stdout) {
-      return copyToUnmodifiableList(stdout);
+  private Future<?> pump(
+      final InputStream inputStream,
+      final OutputCapture lines,
+      final List<Consumer<String>> listeners) {
+    ACTIVE_PUMPS.incrementAndGet();
+    try {
+      return PUMP_EXECUTOR.submit(
+          () -> {
+            try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+              reader.lines().forEach(line -> onLine(line, lines, listeners));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            } finally {
+              ACTIVE_PUMPS.decrementAndGet();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      ACTIVE_PUMPS.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the process to exit, and returns false if the command is aborted or times out
+   * before.
+   */
+  private boolean waitForExitOrAbort(Process process) throws InterruptedException {
+    long deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.toNanos();
+    while (!aborted) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        return false;
+      }
+      if (process.waitFor(Math.min(remaining, ABORT_POLL_MILLIS), TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs the timeout handler then kills the process and all its descendants. Returns the exit code
+   * of the killed process.
+   */
+  private int killOnTimeout(Process process) throws IOException, InterruptedException {
+    if (onTimeout != null) {
+      try {
+        timeoutDiagnostics = Collections.unmodifiableList(onTimeout.onTimeout(this));
+      } catch (IOException | RuntimeException e) {
+        // Diagnostics are best effort, the process has to be killed anyway.
+        e.printStackTrace();
+      }
+    }
+    return killTree(process);
+  }
+
+  /**
+   * Runs the abort handler then kills the process and all its descendants. Returns the exit code of
+   * the killed process.
+   */
+  private int killOnAbort(Process process) throws IOException, InterruptedException {
+    if (onAbort != null) {
+      try {
+        onAbort.onAbort(this);
+      } catch (IOException | RuntimeException e) {
+        // The process has to be killed anyway.
+        e.printStackTrace();
+      }
+    }
+    return killTree(process);
+  }
+
+  private static int killTree(Process process) throws IOException, InterruptedException {
+    long pid = ProcessTrees.pid(process);
+    if (pid != -1) {
+      ProcessTrees.killTree(pid);
     }
+    process.destroyForcibly();
+    return process.waitFor();
   }
 
-  private static <T> List<T> copyToUnmodifiableList(final List<T> source) {
-    return Collections.unmodifiableList(new LinkedList<>(source));
+  /** Returns true if the process was killed because it did not exit before the timeout. */
+  public boolean timedOut() {
+    return timedOut;
+  }
+
+  /** Returns the diagnostics collected when the command timed out, empty otherwise. */
+  public List<String> getTimeoutDiagnostics() {
+    return timeoutDiagnostics;
+  }
+
+  private static void awaitPump(Future<?> pump, Duration gracePeriod)
+      throws IOException, InterruptedException {
+    try {
+      if (gracePeriod == null) {
+        pump.get();
+      } else {
+        pump.get(gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+      }
+    } catch (TimeoutException e) {
+      // Leave the pump running; the output read so far is kept.
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Records a line and hands it to the listeners, as soon as it is read. A failing listener does
+   * not stop the stream from being drained (the process would block on a full pipe otherwise), its
+   * exception is rethrown by {@link #run()} once the process has exited.
+   */
+  private void onLine(String line, OutputCapture lines, List<Consumer<String>> listeners) {
+    lines.add(line);
+    for (Consumer<String> listener : listeners) {
+      try {
+        listener.accept(line);
+      } catch (RuntimeException e) {
+        if (listenerFailure == null) {
+          listenerFailure = e;
+        }
+      }
+    }
+    if (abortCondition != null && !aborted && abortCondition.test(line)) {
+      abort();
+    }
+  }
+
+  /**
+   * Terminates the running process, if any, as on a timeout: {@link #run()} kills the process with
+   * all its descendants, after calling the abort handler. The command then returns the exit code of
+   * the killed process and {@link #aborted()} returns true.
+   */
+  public void abort() {
+    aborted = true;
+  }
+
+  /** Returns true if the command was terminated by {@link #abort()}. */
+  public boolean aborted() {
+    return aborted;
+  }
+
+  /**
+   * Returns the list of lines of the standard error stream. Lines spilled to disk are only read
+   * back when accessed.
+   */
+  public List<String> getErrorLines() {
+    return stderr.lines();
+  }
+
+  /**
+   * Returns the list of lines of the standard output stream. Lines spilled to disk are only read
+   * back when accessed.
+   */
+  public List<String> getOutputLines() {
+    return stdout.lines();
+  }
+
+  /**
+   * Returns a stream over the lines of the standard error stream which does not load the spilled
+   * lines in memory. The stream should be closed after use.
+   */
+  public Stream<String> errorLinesStream() {
+    return stderr.stream();
+  }
+
+  /**
+   * Returns a stream over the lines of the standard output stream which does not load the spilled
+   * lines in memory. The stream should be closed after use.
+   */
+  public Stream<String> outputLinesStream() {
+    return stdout.stream();
   }
 
   /** A builder class to generate a Command object. */
@@ -114,6 +356,14 @@ public final class Command {
     private Path directory;
     private List<String> args = new ArrayList<>();
     private Map<String, String> environment = new HashMap<>();
+    private List<Consumer<String>> outputListeners = new ArrayList<>();
+    private List<Consumer<String>> errorListeners = new ArrayList<>();
+    private Predicate<String> abortCondition = null;
+    private int maxLinesInMemory = -1;
+    private Path spillDirectory = null;
+    private Duration timeout = null;
+    private TimeoutHandler onTimeout = null;
+    private AbortHandler onAbort = null;
 
     private Builder() {
       // Default to the current working directory
@@ -155,12 +405,71 @@ public final class Command {
       return this;
     }
 
+    /**
+     * Add a listener called with each line of the standard output stream as soon as it is read.
+     * Listeners are called from the thread pumping the stream, so they should return quickly.
+     */
+    public Builder addOutputListener(Consumer<String> listener) {
+      this.outputListeners.add(Objects.requireNonNull(listener));
+      return this;
+    }
+
+    /**
+     * Add a listener called with each line of the standard error stream as soon as it is read.
+     * Listeners are called from the thread pumping the stream, so they should return quickly.
+     */
+    public Builder addErrorListener(Consumer<String> listener) {
+      this.errorListeners.add(Objects.requireNonNull(listener));
+      return this;
+    }
+
+    /** Terminates the process as soon as a line of either stream matches {@code condition}. */
+    public Builder abortOn(Predicate<String> condition) {
+      this.abortCondition =
+          this.abortCondition == null ? condition : this.abortCondition.or(condition);
+      return this;
+    }
+
+    /**
+     * Keep only the first {@code maxLinesInMemory} lines of each stream in memory and spill the
+     * other lines to files under {@code spillDirectory}.
+     */
+    public Builder spillOutputAfter(int maxLinesInMemory, Path spillDirectory) {
+      this.maxLinesInMemory = maxLinesInMemory;
+      this.spillDirectory = Objects.requireNonNull(spillDirectory);
+      return this;
+    }
+
+    private OutputCapture newCapture(String name) {
+      return spillDirectory == null
+          ? OutputCapture.inMemory()
+          : OutputCapture.spillingAfter(maxLinesInMemory, spillDirectory, name);
+    }
+
+    /**
+     * Kill the process and all its descendants if it does not exit within {@code timeout}. The
+     * {@code onTimeout} handler, which may be null, is called before killing the process to
+     * collect diagnostics.
+     */
+    public Builder withTimeout(Duration timeout, TimeoutHandler onTimeout) {
+      this.timeout = Objects.requireNonNull(timeout);
+      this.onTimeout = onTimeout;
+      return this;
+    }
+
+    /**
+     * Calls {@code onAbort} when the command is aborted, before its process is killed with all its
+     * descendants.
+     */
+    public Builder onAbort(AbortHandler onAbort) {
+      this.onAbort = onAbort;
+      return this;
+    }
+
     /** Build a Command object. */
     public Command build() {
       Objects.requireNonNull(directory);
-      List<String> args = Collections.unmodifiableList(this.args);
-      Map<String, String> env = Collections.unmodifiableMap(environment);
-      return new Command(directory, args, env);
+      return new Command(this);
     }
   }
 
@@ -0,0 +1,237 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Describes a Bazel invocation for troubleshooting: its arguments, exit code, output streams and
+ * the files of its workspace.
+ *
+ * <p>The report is rendered with limits, so that a failure in a big workspace or after a verbose
+ * build does not cost seconds and hundreds of megabytes: only the head and the tail of each output
+ * stream are kept, long lines are cut, and the file listing is capped and leaves out the output
+ * trees of Bazel. The output streams are read lazily, without loading their spilled lines in
+ * memory. A larger report can be streamed to a file of {@code TEST_UNDECLARED_OUTPUTS_DIR}, which
+ * Bazel keeps with the test results.
+ */
+final class DiagnosticReport {
+
+  /** The limits of a report. */
+  static final class Limits {
+    final int headLines;
+    final int tailLines;
+    final int maxLineLength;
+    final int maxFiles;
+
+    Limits(int headLines, int tailLines, int maxLineLength, int maxFiles) {
+      this.headLines = headLines;
+      this.tailLines = tailLines;
+      this.maxLineLength = maxLineLength;
+      this.maxFiles = maxFiles;
+    }
+  }
+
+  /** The limits of the reports rendered as strings, for instance in exception messages. */
+  static final Limits SUMMARY = new Limits(20, 80, 1000, 200);
+  /** The limits of the reports written to files. */
+  static final Limits FILE = new Limits(1000, 10000, 10000, 10000);
+
+  private static final String INDENT = "    ";
+  private static final AtomicInteger reportCount = new AtomicInteger();
+
+  private final List<String> args;
+  private final String exitCode;
+  private final Supplier<Stream<String>> output;
+  private final Supplier<Stream<String>> error;
+  private final Path workspace;
+
+  DiagnosticReport(
+      List<String> args,
+      String exitCode,
+      Supplier<Stream<String>> output,
+      Supplier<Stream<String>> error,
+      Path workspace) {
+    this.args = args;
+    this.exitCode = exitCode;
+    this.output = output;
+    this.error = error;
+    this.workspace = workspace;
+  }
+
+  /** Returns the report rendered within {@code limits}. */
+  String render(Limits limits) {
+    StringBuilder report = new StringBuilder();
+    try {
+      renderTo(report, limits);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return report.toString();
+  }
+
+  /** Writes the report, rendered within {@code limits}, to {@code file}. */
+  void writeTo(Path file, Limits limits) throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    try (Writer writer = Files.newBufferedWriter(file, UTF_8)) {
+      renderTo(writer, limits);
+    }
+  }
+
+  /**
+   * Writes the report to a new file of {@code TEST_UNDECLARED_OUTPUTS_DIR}, and returns it. Returns
+   * null if the variable is not set, as when the test does not run under Bazel.
+   */
+  Path writeToUndeclaredOutputs() throws IOException {
+    String outputs = System.getenv("TEST_UNDECLARED_OUTPUTS_DIR");
+    if (outputs == null || outputs.isEmpty()) {
+      return null;
+    }
+    Path file =
+        Paths.get(outputs)
+            .resolve("bazel-integration-testing")
+            .resolve("bazel-command-" + reportCount.incrementAndGet() + ".txt");
+    writeTo(file, FILE);
+    return file;
+  }
+
+  private void renderTo(Appendable report, Limits limits) throws IOException {
+    report.append("BAZEL COMMAND: ").append(String.valueOf(args)).append('\n');
+    report.append("EXIT CODE: ").append(exitCode).append('\n');
+    report.append("STDOUT:\n");
+    renderLines(report, output, limits);
+    report.append("STDERR:\n");
+    renderLines(report, error, limits);
+    report.append("WORKSPACE CONTENTS:\n");
+    renderFiles(report, limits);
+  }
+
+  /** Appends the head and the tail of the lines, reading them once. */
+  private static void renderLines(
+      Appendable report, Supplier<Stream<String>> lines, Limits limits) throws IOException {
+    Deque<String> tail = new ArrayDeque<>();
+    long skipped = 0;
+    try (Stream<String> stream = lines.get()) {
+      Iterator<String> iterator = stream.iterator();
+      for (int i = 0; i < limits.headLines && iterator.hasNext(); i++) {
+        appendLine(report, iterator.next(), limits);
+      }
+      while (iterator.hasNext()) {
+        String line = iterator.next();
+        if (limits.tailLines == 0) {
+          skipped++;
+          continue;
+        }
+        if (tail.size() == limits.tailLines) {
+          tail.removeFirst();
+          skipped++;
+        }
+        tail.addLast(cut(line, limits));
+      }
+    }
+    if (skipped > 0) {
+      report.append(INDENT).append("[... ").append(String.valueOf(skipped));
+      report.append(" lines skipped ...]\n");
+    }
+    for (String line : tail) {
+      report.append(INDENT).append(line).append('\n');
+    }
+  }
+
+  private static void appendLine(Appendable report, String line, Limits limits)
+      throws IOException {
+    report.append(INDENT).append(cut(line, limits)).append('\n');
+  }
+
+  private static String cut(String line, Limits limits) {
+    if (line.length() <= limits.maxLineLength) {
+      return line;
+    }
+    return line.substring(0, limits.maxLineLength)
+        + " [... "
+        + (line.length() - limits.maxLineLength)
+        + " characters cut]";
+  }
+
+  /**
+   * Appends the paths of up to {@code maxFiles} files and directories of the workspace. Symbolic
+   * links are listed but not followed, and the convenience symbolic links of Bazel, which lead to
+   * its output trees, are left out.
+   */
+  private void renderFiles(Appendable report, Limits limits) throws IOException {
+    if (workspace == null || !Files.isDirectory(workspace)) {
+      return;
+    }
+    int[] listed = {0};
+    boolean[] truncated = {false};
+    Files.walkFileTree(
+        workspace,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            return list(dir);
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (attrs.isSymbolicLink()
+                && file.getParent().equals(workspace)
+                && file.getFileName().toString().startsWith("bazel-")) {
+              return FileVisitResult.CONTINUE;
+            }
+            return list(file);
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            // The file was deleted while listing, or is not readable.
+            return FileVisitResult.CONTINUE;
+          }
+
+          private FileVisitResult list(Path path) throws IOException {
+            if (listed[0] == limits.maxFiles) {
+              truncated[0] = true;
+              return FileVisitResult.TERMINATE;
+            }
+            listed[0]++;
+            report.append(INDENT).append(path.toString()).append('\n');
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    if (truncated[0]) {
+      report.append(INDENT).append("[... listing stopped after ");
+      report.append(String.valueOf(limits.maxFiles)).append(" entries ...]\n");
+    }
+  }
+}
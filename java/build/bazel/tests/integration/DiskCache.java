@@ -0,0 +1,119 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A {@code --disk_cache} directory shared by the workspaces of a test target, so that an action
+ * executed in one workspace is a cache hit in the next ones.
+ *
+ * <p>The cache grows with every build, {@link #trim()} deletes the least recently used entries
+ * until it fits in its size cap. It is called between tests, while no invocation runs.
+ */
+final class DiskCache {
+
+  private final Path directory;
+  private final long maxBytes;
+
+  DiskCache(Path directory, long maxBytes) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the directory of the cache. */
+  Path directory() {
+    return directory;
+  }
+
+  /** Returns the options to pass to the build commands for them to use the cache. */
+  List<String> bazelOptions() {
+    return Collections.singletonList("--disk_cache=" + directory);
+  }
+
+  /** Returns the total size of the cache entries. */
+  long size() throws IOException {
+    return entries().stream().mapToLong(Entry::size).sum();
+  }
+
+  /** Deletes the least recently used entries until the cache is no larger than its size cap. */
+  void trim() throws IOException {
+    List<Entry> entries = entries();
+    long size = entries.stream().mapToLong(Entry::size).sum();
+    entries.sort(Comparator.comparingLong(Entry::lastUse));
+    for (Entry entry : entries) {
+      if (size <= maxBytes) {
+        return;
+      }
+      try {
+        Files.delete(entry.path);
+      } catch (NoSuchFileException e) {
+        // Already gone.
+      }
+      size -= entry.size;
+    }
+  }
+
+  private List<Entry> entries() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (attributes.isRegularFile()) {
+          entries.add(new Entry(file, attributes));
+        }
+      }
+    }
+    return entries;
+  }
+
+  private static final class Entry {
+    private final Path path;
+    private final long size;
+    private final long lastUse;
+
+    private Entry(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.size = attributes.size();
+      // Not all versions of Bazel touch the entries they read, the access time is a better hint
+      // where the file system maintains it.
+      this.lastUse =
+          Math.max(
+              attributes.lastModifiedTime().toMillis(), attributes.lastAccessTime().toMillis());
+    }
+
+    private long size() {
+      return size;
+    }
+
+    private long lastUse() {
+      return lastUse;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The timing of the actions of a build, read from the JSON trace profile written by Bazel with
+ * {@code --experimental_generate_json_trace_profile --profile=<file>}.
+ *
+ * <p>It tells how long the actions waited for the resources to run ({@link #queueTime()}), how
+ * long they ran ({@link #executionTime()}) and how many ran at the same time ({@link
+ * #maxConcurrency()}), see {@link WorkspaceDriver#profileActions(int)}.
+ */
+public final class ExecutionProfile {
+
+  // A field of an event whose value is a string or a number, the only ones read.
+  private static final Pattern FIELD =
+      Pattern.compile("\"([^\"\\\\]*)\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|([-+0-9.eE]+))");
+
+  private final List<Span> executions;
+  private final Duration queueTime;
+
+  private ExecutionProfile(List<Span> executions, Duration queueTime) {
+    this.executions = executions;
+    this.queueTime = queueTime;
+  }
+
+  /** Reads the trace profile {@code file}, which may be compressed with gzip. */
+  static ExecutionProfile read(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      InputStream content = file.toString().endsWith(".gz") ? new GZIPInputStream(in) : in;
+      try (Reader reader = new InputStreamReader(content, StandardCharsets.UTF_8)) {
+        return fromEvents(events(reader));
+      }
+    }
+  }
+
+  /**
+   * Returns the string and number fields of the trace events, the objects with a {@code ph} field,
+   * wherever they are nested. The objects are scanned without building a JSON tree: each one only
+   * collects its own text, without the nested objects, in which its fields are then matched. An
+   * object left unterminated, as when Bazel is killed while writing the profile, is ignored.
+   */
+  private static List<Map<String, String>> events(Reader reader) throws IOException {
+    List<Map<String, String>> events = new ArrayList<>();
+    Deque<StringBuilder> objects = new ArrayDeque<>();
+    boolean inString = false;
+    boolean escaped = false;
+    int read;
+    while ((read = reader.read()) != -1) {
+      char c = (char) read;
+      StringBuilder current = objects.peek();
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '{') {
+        objects.push(new StringBuilder());
+        continue;
+      } else if (c == '}') {
+        if (current != null) {
+          Map<String, String> fields = fields(objects.pop());
+          if (fields.containsKey("ph")) {
+            events.add(fields);
+          }
+        }
+        continue;
+      } else if (c == '"') {
+        inString = true;
+      }
+      if (current != null) {
+        current.append(c);
+      }
+    }
+    return events;
+  }
+
+  private static Map<String, String> fields(CharSequence object) {
+    Map<String, String> fields = new HashMap<>();
+    Matcher field = FIELD.matcher(object);
+    while (field.find()) {
+      fields.put(field.group(1), field.group(2) != null ? field.group(2) : field.group(3));
+    }
+    return fields;
+  }
+
+  private static ExecutionProfile fromEvents(List<Map<String, String>> events) {
+    List<Span> executions = new ArrayList<>();
+    List<Span> actions = new ArrayList<>();
+    long queueMicros = 0;
+    for (Map<String, String> event : events) {
+      if (!"X".equals(event.get("ph"))) {
+        continue;
+      }
+      String category = String.valueOf(event.get("cat"));
+      long start = number(event.get("ts"));
+      long duration = number(event.get("dur"));
+      if (category.equals("local action execution")) {
+        executions.add(new Span(start, start + duration));
+      } else if (category.equals("action processing")) {
+        actions.add(new Span(start, start + duration));
+      } else if (category.equals("action resource lock")) {
+        queueMicros += duration;
+      }
+    }
+    // Older versions do not report the execution itself, only the processing of the action.
+    return new ExecutionProfile(
+        Collections.unmodifiableList(executions.isEmpty() ? actions : executions),
+        Duration.ofNanos(queueMicros * 1000));
+  }
+
+  private static long number(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return (long) Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Returns the number of actions executed. */
+  public int actions() {
+    return executions.size();
+  }
+
+  /** Returns the time the actions spent waiting for the resources to run. */
+  public Duration queueTime() {
+    return queueTime;
+  }
+
+  /** Returns the sum of the execution times of the actions. */
+  public Duration executionTime() {
+    long micros = 0;
+    for (Span span : executions) {
+      micros += span.end - span.start;
+    }
+    return Duration.ofNanos(micros * 1000);
+  }
+
+  /** Returns the time from the start of the first action to the end of the last one. */
+  public Duration wallTime() {
+    if (executions.isEmpty()) {
+      return Duration.ZERO;
+    }
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    for (Span span : executions) {
+      start = Math.min(start, span.start);
+      end = Math.max(end, span.end);
+    }
+    return Duration.ofNanos((end - start) * 1000);
+  }
+
+  /** Returns the maximum number of actions running at the same time. */
+  public int maxConcurrency() {
+    List<long[]> edges = new ArrayList<>();
+    for (Span span : executions) {
+      edges.add(new long[] {span.start, 1});
+      edges.add(new long[] {span.end, -1});
+    }
+    // At the same instant, an action ending frees its slot before the next one starts.
+    edges.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    int running = 0;
+    int max = 0;
+    for (long[] edge : edges) {
+      running += edge[1];
+      max = Math.max(max, running);
+    }
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return actions()
+        + " actions, queued "
+        + queueTime()
+        + ", executed "
+        + executionTime()
+        + " in "
+        + wallTime()
+        + ", at most "
+        + maxConcurrency()
+        + " at once";
+  }
+
+  private static final class Span {
+    private final long start;
+    private final long end;
+
+    private Span(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+}
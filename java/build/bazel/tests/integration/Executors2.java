@@ -0,0 +1,59 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools of daemon threads, which never keep the JVM running the tests alive, named after
+ * their purpose so that they can be told apart in a thread dump.
+ */
+final class Executors2 {
+
+  /**
+   * The pool for the CPU-bound work of the framework, such as writing the files of a workspace or
+   * digesting the files added to the repository cache, with one thread per core. It is shared so
+   * that concurrent batches do not oversubscribe the cores.
+   */
+  static final ExecutorService CPU_BOUND =
+      daemonPool("bazel-integration-cpu", Runtime.getRuntime().availableProcessors());
+
+  private Executors2() {}
+
+  /** Returns a pool of {@code size} daemon threads named {@code <name>-<number>}. */
+  static ExecutorService daemonPool(String name, int size) {
+    return Executors.newFixedThreadPool(size, daemonThreads(name));
+  }
+
+  /**
+   * Returns a pool of daemon threads named {@code <name>-<number>}, created as needed and reused
+   * when idle, for tasks which mostly wait.
+   */
+  static ExecutorService cachedDaemonPool(String name) {
+    return Executors.newCachedThreadPool(daemonThreads(name));
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
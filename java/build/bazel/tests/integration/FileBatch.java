@@ -0,0 +1,102 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes many files of a workspace in parallel, one thread per core, creating each directory once.
+ *
+ * <p>The files are written by {@link FileTask}s which call {@link #parentOf(Path)} for their
+ * target: the directories created by the batch are remembered, so that the thousands of files of
+ * a package do not each check their parent on the file system.
+ */
+final class FileBatch {
+
+  /** Writes one file. */
+  interface FileTask {
+    void run() throws IOException;
+  }
+
+  private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+  private final List<FileTask> tasks = new ArrayList<>();
+
+  /** Adds a file to write when the batch runs. */
+  FileBatch add(FileTask task) {
+    tasks.add(task);
+    return this;
+  }
+
+  /** Creates the parent directory of {@code file} unless the batch already did, and returns it. */
+  Path parentOf(Path file) throws IOException {
+    Path parent = file.getParent();
+    if (!directories.contains(parent)) {
+      Files.createDirectories(parent);
+      directories.add(parent);
+    }
+    return parent;
+  }
+
+  /**
+   * Runs all the tasks and waits for them. Stops at the first failure, whose exception is thrown,
+   * and cancels the tasks not run yet.
+   */
+  void run() throws IOException {
+    CompletionService<Void> completion = new ExecutorCompletionService<>(Executors2.CPU_BOUND);
+    List<Future<Void>> pending = new ArrayList<>();
+    for (FileTask task : tasks) {
+      pending.add(
+          completion.submit(
+              () -> {
+                try {
+                  task.run();
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              },
+              null));
+    }
+    try {
+      for (int i = 0; i < pending.size(); i++) {
+        completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing the files of the workspace");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      for (Future<Void> future : pending) {
+        future.cancel(true);
+      }
+    }
+  }
+}
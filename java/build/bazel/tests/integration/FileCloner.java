@@ -0,0 +1,150 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+/**
+ * Duplicates files with the cheapest {@link CloneStrategy} the file systems support.
+ *
+ * <p>The support is detected on the first file: the strategies are tried from the cheapest one and
+ * the first that works is used for the following files. If it later fails, for instance because a
+ * source is on another device, the cloner falls back to the next strategy for good. {@link
+ * CloneStrategy#COPY} always works.
+ */
+final class FileCloner {
+
+  private final CloneStrategy cheapest;
+  private final boolean hardLinks;
+  private volatile CloneStrategy current;
+  private volatile CloneStrategy used = null;
+
+  /** Returns a cloner trying all the strategies, starting with {@link CloneStrategy#REFLINK}. */
+  FileCloner() {
+    this(CloneStrategy.REFLINK);
+  }
+
+  /** Returns a cloner trying {@code cheapest} first, and then the more expensive strategies. */
+  FileCloner(CloneStrategy cheapest) {
+    this(cheapest, true);
+  }
+
+  private FileCloner(CloneStrategy cheapest, boolean hardLinks) {
+    this.cheapest = cheapest;
+    this.hardLinks = hardLinks;
+    this.current = cheapest;
+  }
+
+  /**
+   * Returns a cloner trying {@link CloneStrategy#REFLINK} and then {@link CloneStrategy#COPY}, for
+   * sources owned by someone else: a hard link would share their inode, so changing the
+   * permissions or the modification time of the clone would change the source too.
+   */
+  static FileCloner withoutHardLinks() {
+    return new FileCloner(CloneStrategy.REFLINK, false);
+  }
+
+  /**
+   * Returns the most expensive strategy used so far, or the cheapest one allowed if no file was
+   * cloned yet.
+   */
+  CloneStrategy strategy() {
+    CloneStrategy strategy = used;
+    return strategy != null ? strategy : cheapest;
+  }
+
+  /**
+   * Clones {@code source}, following symbolic links, into {@code target} which must not exist, and
+   * returns the strategy used.
+   */
+  CloneStrategy clone(Path source, Path target) throws IOException {
+    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      throw new FileAlreadyExistsException(target.toString());
+    }
+    Path real = source.toRealPath();
+    CloneStrategy[] strategies = CloneStrategy.values();
+    for (int i = current.ordinal(); i < strategies.length; i++) {
+      if (strategies[i] == CloneStrategy.HARDLINK && !hardLinks) {
+        continue;
+      }
+      if (tryClone(strategies[i], real, target)) {
+        record(strategies[i]);
+        return strategies[i];
+      }
+    }
+    throw new IllegalStateException("Copying is always possible");
+  }
+
+  private synchronized void record(CloneStrategy strategy) {
+    if (strategy.ordinal() > current.ordinal()) {
+      current = strategy;
+    }
+    if (used == null || strategy.ordinal() > used.ordinal()) {
+      used = strategy;
+    }
+  }
+
+  private static boolean tryClone(CloneStrategy strategy, Path source, Path target)
+      throws IOException {
+    switch (strategy) {
+      case REFLINK:
+        return reflink(source, target);
+      case HARDLINK:
+        try {
+          Files.createLink(target, source);
+          return true;
+        } catch (IOException | UnsupportedOperationException e) {
+          return false;
+        }
+      case COPY:
+        Files.copy(source, target);
+        return true;
+    }
+    throw new AssertionError(strategy);
+  }
+
+  private static boolean reflink(Path source, Path target) throws IOException {
+    String flag;
+    switch (OS.getCurrent()) {
+      case LINUX:
+        flag = "--reflink=always";
+        break;
+      case DARWIN:
+        flag = "-c";
+        break;
+      default:
+        return false;
+    }
+    Command cp =
+        Command.builder().addArguments("cp", flag, source.toString(), target.toString()).build();
+    try {
+      if (cp.run() == 0) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while cloning " + source);
+    } catch (IOException e) {
+      // No cp, fall back to the next strategy.
+    }
+    Files.deleteIfExists(target);
+    return false;
+  }
+}
@@ -0,0 +1,371 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Bazel HTTP remote cache served from the test process, to check that rules are remotely
+ * cacheable and measure hit rates without network access.
+ *
+ * <p>It implements the {@code GET}, {@code HEAD} and {@code PUT} methods on the {@code /ac/<key>}
+ * (action cache) and {@code /cas/<digest>} (content addressable storage) endpoints of the <a
+ * href="https://docs.bazel.build/versions/master/remote-caching.html#http-caching-protocol">HTTP
+ * caching protocol</a>. The entries are kept in memory or in a directory, and the least recently
+ * used ones are evicted beyond the size cap. Hits, misses and transferred bytes are recorded per
+ * entry:
+ *
+ * <pre>{@code
+ * HttpRemoteCache cache = driver.startRemoteCache(100 * 1024 * 1024);
+ * driver.bazel("build", "//...").mustRunSuccessfully();
+ * driver.newWorkspace();
+ * ...
+ * assertThat(driver.bazel("build", "//...").mustRunSuccessfully().cacheHits()).isGreaterThan(0);
+ * assertThat(cache.hits()).isGreaterThan(0);
+ * }</pre>
+ */
+public final class HttpRemoteCache implements AutoCloseable {
+
+  private static final Pattern ENTRY = Pattern.compile(".*/(ac|cas)/([0-9a-fA-F]+)$");
+  private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long maxBytes;
+  // Null when the entries are kept in memory.
+  private final Path directory;
+
+  // The size of each entry, in access order: the first one is the least recently used.
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, byte[]> contents = new LinkedHashMap<>();
+  private final Map<String, EntryStats> stats = new TreeMap<>();
+  private long size = 0;
+
+  private HttpRemoteCache(long maxBytes, Path directory) throws IOException {
+    this.maxBytes = maxBytes;
+    this.directory = directory;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.executor = Executors2.cachedDaemonPool("http-remote-cache");
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+  }
+
+  /** Starts a cache keeping up to {@code maxBytes} of entries in memory. */
+  public static HttpRemoteCache start(long maxBytes) throws IOException {
+    HttpRemoteCache cache = new HttpRemoteCache(maxBytes, null);
+    cache.server.start();
+    return cache;
+  }
+
+  /** Starts a cache keeping up to {@code maxBytes} of entries in files under {@code directory}. */
+  public static HttpRemoteCache start(long maxBytes, Path directory) throws IOException {
+    HttpRemoteCache cache = new HttpRemoteCache(maxBytes, Files.createDirectories(directory));
+    cache.server.start();
+    return cache;
+  }
+
+  /**
+   * Returns the URL of the cache, on the loopback address it is bound to. The address is used
+   * rather than {@code localhost}, which may resolve to the loopback address of the other IP
+   * version.
+   */
+  public String url() {
+    InetSocketAddress address = server.getAddress();
+    String host = address.getAddress().getHostAddress();
+    if (address.getAddress() instanceof Inet6Address) {
+      // A scope is meaningless on the loopback interface, and would need escaping in a URL.
+      int scope = host.indexOf('%');
+      host = "[" + (scope < 0 ? host : host.substring(0, scope)) + "]";
+    }
+    return "http://" + host + ":" + address.getPort();
+  }
+
+  /**
+   * Returns the options to pass to the build commands of {@code bazelVersion} for them to use the
+   * cache: {@code --remote_cache} only takes an HTTP URL since Bazel 0.24.0, the previous versions
+   * expect it as {@code --remote_http_cache}.
+   */
+  public List<String> bazelOptions(String bazelVersion) {
+    String flag = remoteCacheTakesUrls(bazelVersion) ? "--remote_cache=" : "--remote_http_cache=";
+    return Collections.singletonList(flag + url());
+  }
+
+  /**
+   * Whether {@code bazelVersion}, such as {@code 0.23.2}, is at least 0.24.0. A version which does
+   * not start with numbers, such as a development build, is taken as a recent one.
+   */
+  static boolean remoteCacheTakesUrls(String bazelVersion) {
+    Matcher version = VERSION.matcher(bazelVersion == null ? "" : bazelVersion);
+    if (!version.lookingAt()) {
+      return true;
+    }
+    return Integer.parseInt(version.group(1)) > 0 || Integer.parseInt(version.group(2)) >= 24;
+  }
+
+  /** Returns the number of entries found. */
+  public synchronized long hits() {
+    return stats.values().stream().mapToLong(EntryStats::hits).sum();
+  }
+
+  /** Returns the number of entries looked up but not found. */
+  public synchronized long misses() {
+    return stats.values().stream().mapToLong(EntryStats::misses).sum();
+  }
+
+  /** Returns the number of bytes sent to Bazel. */
+  public synchronized long bytesDownloaded() {
+    return stats.values().stream().mapToLong(EntryStats::bytesDownloaded).sum();
+  }
+
+  /** Returns the number of bytes received from Bazel. */
+  public synchronized long bytesUploaded() {
+    return stats.values().stream().mapToLong(EntryStats::bytesUploaded).sum();
+  }
+
+  /**
+   * Returns a snapshot of the statistics per entry, keyed by {@code ac/<key>} or {@code
+   * cas/<digest>}.
+   */
+  public synchronized Map<String, EntryStats> entryStats() {
+    Map<String, EntryStats> snapshot = new TreeMap<>();
+    stats.forEach((key, value) -> snapshot.put(key, value.copy()));
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  /** Returns the total size of the entries currently stored. */
+  public synchronized long size() {
+    return size;
+  }
+
+  /** Stops the server. The entries stored on disk are left in place. */
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      Matcher matcher = ENTRY.matcher(exchange.getRequestURI().getPath());
+      if (!matcher.matches()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      String key = matcher.group(1) + "/" + matcher.group(2).toLowerCase();
+      switch (exchange.getRequestMethod()) {
+        case "GET":
+          get(key, exchange, true);
+          break;
+        case "HEAD":
+          get(key, exchange, false);
+          break;
+        case "PUT":
+          put(key, exchange);
+          break;
+        default:
+          exchange.sendResponseHeaders(405, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void get(String key, HttpExchange exchange, boolean sendContent) throws IOException {
+    byte[] content = null;
+    InputStream file = null;
+    long length;
+    synchronized (this) {
+      Long entrySize = index.get(key);
+      EntryStats entryStats = stats.computeIfAbsent(key, k -> new EntryStats());
+      if (entrySize == null) {
+        entryStats.misses++;
+        length = -1;
+      } else {
+        entryStats.hits++;
+        if (sendContent) {
+          entryStats.bytesDownloaded += entrySize;
+        }
+        length = entrySize;
+        if (directory == null) {
+          content = contents.get(key);
+        } else if (sendContent) {
+          // Opened while holding the lock: the open file keeps the content of this entry even if
+          // it is replaced or evicted while it is being sent.
+          file = Files.newInputStream(fileOf(key));
+        }
+      }
+    }
+    try (InputStream entry = file) {
+      if (length < 0) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      if (!sendContent) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+      try (OutputStream body = exchange.getResponseBody()) {
+        if (content != null) {
+          body.write(content);
+        } else if (entry != null) {
+          copy(entry, body);
+        }
+      }
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] chunk = new byte[1 << 16];
+    int read;
+    while ((read = in.read(chunk)) != -1) {
+      out.write(chunk, 0, read);
+    }
+  }
+
+  private void put(String key, HttpExchange exchange) throws IOException {
+    long length;
+    byte[] content = null;
+    Path temporary = null;
+    try (InputStream body = exchange.getRequestBody()) {
+      if (directory == null) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        copy(body, buffer);
+        content = buffer.toByteArray();
+        length = content.length;
+      } else {
+        temporary = Files.createTempFile(directory, "upload", ".tmp");
+        length = Files.copy(body, temporary, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    synchronized (this) {
+      stats.computeIfAbsent(key, k -> new EntryStats()).bytesUploaded += length;
+      remove(key);
+      if (length <= maxBytes) {
+        if (directory == null) {
+          contents.put(key, content);
+        } else {
+          Files.move(temporary, fileOf(key), StandardCopyOption.REPLACE_EXISTING);
+        }
+        index.put(key, length);
+        size += length;
+        evict();
+      }
+    }
+    if (temporary != null) {
+      Files.deleteIfExists(temporary);
+    }
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  private void evict() throws IOException {
+    // Iterating does not change the access order, unlike index.get().
+    Iterator<Map.Entry<String, Long>> leastRecentlyUsed = index.entrySet().iterator();
+    while (size > maxBytes && leastRecentlyUsed.hasNext()) {
+      Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+      String key = entry.getKey();
+      size -= entry.getValue();
+      leastRecentlyUsed.remove();
+      contents.remove(key);
+      if (directory != null) {
+        Files.deleteIfExists(fileOf(key));
+      }
+    }
+  }
+
+  private void remove(String key) throws IOException {
+    Long previous = index.remove(key);
+    if (previous != null) {
+      size -= previous;
+      contents.remove(key);
+      if (directory != null) {
+        Files.deleteIfExists(fileOf(key));
+      }
+    }
+  }
+
+  private Path fileOf(String key) {
+    return directory.resolve(key.replace('/', '-'));
+  }
+
+  /** The statistics of an entry of the cache. */
+  public static final class EntryStats {
+    private long hits = 0;
+    private long misses = 0;
+    private long bytesDownloaded = 0;
+    private long bytesUploaded = 0;
+
+    private EntryStats copy() {
+      EntryStats copy = new EntryStats();
+      copy.hits = hits;
+      copy.misses = misses;
+      copy.bytesDownloaded = bytesDownloaded;
+      copy.bytesUploaded = bytesUploaded;
+      return copy;
+    }
+
+    /** Returns the number of times the entry was found. */
+    public long hits() {
+      return hits;
+    }
+
+    /** Returns the number of times the entry was looked up but not found. */
+    public long misses() {
+      return misses;
+    }
+
+    /** Returns the number of bytes of the entry sent to Bazel. */
+    public long bytesDownloaded() {
+      return bytesDownloaded;
+    }
+
+    /** Returns the number of bytes of the entry received from Bazel. */
+    public long bytesUploaded() {
+      return bytesUploaded;
+    }
+
+    @Override
+    public String toString() {
+      return "hits="
+          + hits
+          + " misses="
+          + misses
+          + " downloaded="
+          + bytesDownloaded
+          + " uploaded="
+          + bytesUploaded;
+    }
+  }
+}
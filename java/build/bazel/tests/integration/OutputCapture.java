@@ -0,0 +1,310 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Collects the lines of an output stream of a {@link Command}.
+ *
+ * <p>By default all the lines are kept in memory. When created with {@link #spillingAfter}, only
+ * the first lines are kept in memory and the rest is appended to a file, which is read back line by
+ * line when the spilled lines are requested. This keeps the memory usage of the test bounded for
+ * commands such as {@code bazel query 'deps(//...)'} which can output hundreds of megabytes.
+ */
+final class OutputCapture {
+
+  private final ArrayList<String> window = new ArrayList<>();
+  private final int maxLinesInMemory;
+  private final Path spillDirectory;
+  private final String name;
+
+  private Path spillFile = null;
+  private BufferedWriter spillWriter = null;
+  private int spilledLines = 0;
+  private List<String> frozen = null;
+
+  private OutputCapture(int maxLinesInMemory, Path spillDirectory, String name) {
+    this.maxLinesInMemory = maxLinesInMemory;
+    this.spillDirectory = spillDirectory;
+    this.name = name;
+  }
+
+  /** Returns a capture keeping all the lines in memory. */
+  static OutputCapture inMemory() {
+    return new OutputCapture(Integer.MAX_VALUE, null, null);
+  }
+
+  /**
+   * Returns a capture keeping the first {@code maxLinesInMemory} lines in memory and spilling the
+   * others to a file named after {@code name} under {@code spillDirectory}.
+   */
+  static OutputCapture spillingAfter(int maxLinesInMemory, Path spillDirectory, String name) {
+    if (maxLinesInMemory < 0) {
+      throw new IllegalArgumentException("maxLinesInMemory must not be negative");
+    }
+    return new OutputCapture(maxLinesInMemory, spillDirectory, name);
+  }
+
+  synchronized void add(String line) {
+    if (frozen != null) {
+      // A descendant of a killed process may still write after the capture was closed.
+      return;
+    }
+    if (window.size() < maxLinesInMemory) {
+      window.add(line);
+      return;
+    }
+    try {
+      if (spillWriter == null) {
+        Files.createDirectories(spillDirectory);
+        spillFile = Files.createTempFile(spillDirectory, name, ".log");
+        spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+      }
+      spillWriter.write(line);
+      spillWriter.newLine();
+      spilledLines++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns the number of lines captured so far. */
+  synchronized int size() {
+    return (frozen != null ? frozen.size() : window.size()) + spilledLines;
+  }
+
+  /** Returns the file holding the spilled lines, if any line was spilled. */
+  synchronized Path spillFile() {
+    return spillFile;
+  }
+
+  /**
+   * Returns a snapshot of the lines captured so far. Spilled lines are read from disk as the
+   * elements past the in-memory window are accessed, and are never all loaded in memory.
+   *
+   * <p>Once the capture is closed, the in-memory lines are frozen in an immutable array-backed list
+   * which is returned without any copy.
+   */
+  synchronized List<String> lines() {
+    List<String> head = frozen != null ? frozen : new ArrayList<>(window);
+    if (spilledLines == 0) {
+      return frozen != null ? frozen : Collections.unmodifiableList(head);
+    }
+    flush();
+    return new SpilledLines(head, spilledLines);
+  }
+
+  /**
+   * Returns a stream over the lines captured so far, reading the spilled lines from disk as the
+   * stream is consumed. The stream should be closed to release the spill file.
+   */
+  synchronized Stream<String> stream() {
+    List<String> head = frozen != null ? frozen : new ArrayList<>(window);
+    if (spilledLines == 0) {
+      return head.stream();
+    }
+    flush();
+    final int count = spilledLines;
+    final Path file = spillFile;
+    try {
+      Stream<String> spilled = Files.lines(file, StandardCharsets.UTF_8).limit(count);
+      return Stream.concat(head.stream(), spilled).onClose(spilled::close);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Flushes the spill file and freezes the in-memory lines, called once the stream has been fully
+   * read.
+   */
+  synchronized void close() {
+    if (frozen == null) {
+      frozen = Collections.unmodifiableList(Arrays.asList(window.toArray(new String[0])));
+      window.clear();
+      window.trimToSize();
+    }
+    if (spillWriter != null) {
+      try {
+        spillWriter.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      spillWriter = null;
+    }
+  }
+
+  private void flush() {
+    if (spillWriter != null) {
+      try {
+        spillWriter.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * A read-only list whose tail is read from the spill file as it is accessed, without ever being
+   * loaded in memory. Iterating, streaming, or reading the elements in order reads the file once;
+   * reading backwards reads it again from the start.
+   *
+   * <p>The file is only open while a chunk of lines is read, so that an iteration or a stream
+   * stopped early, as by {@code lines.stream().anyMatch(...)}, leaves no file open.
+   */
+  private final class SpilledLines extends AbstractList<String> {
+    private final List<String> head;
+    private final int spilled;
+    private final Path file;
+
+    // The cursor used by get, positioned before the spilled line of index cursor.read.
+    private SpillCursor cursor = null;
+
+    private SpilledLines(List<String> head, int spilled) {
+      this.head = head;
+      this.spilled = spilled;
+      this.file = spillFile;
+    }
+
+    @Override
+    public synchronized String get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+      }
+      if (index < head.size()) {
+        return head.get(index);
+      }
+      int spilledIndex = index - head.size();
+      if (cursor == null || spilledIndex < cursor.read) {
+        cursor = new SpillCursor(file, spilled);
+      }
+      String line = null;
+      while (cursor.read <= spilledIndex) {
+        line = cursor.next();
+      }
+      return line;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      Iterator<String> headIterator = head.iterator();
+      SpillCursor lines = new SpillCursor(file, spilled);
+      return new Iterator<String>() {
+        @Override
+        public boolean hasNext() {
+          return headIterator.hasNext() || lines.read < spilled;
+        }
+
+        @Override
+        public String next() {
+          if (headIterator.hasNext()) {
+            return headIterator.next();
+          }
+          if (lines.read == spilled) {
+            throw new NoSuchElementException();
+          }
+          return lines.next();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return head.size() + spilled;
+    }
+  }
+
+  /**
+   * Reads the lines of a spill file in chunks, from the byte offset where the previous chunk ended.
+   * The file is opened and closed for each chunk.
+   */
+  private static final class SpillCursor {
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private final Path file;
+    private final int count;
+    private final ArrayDeque<String> chunk = new ArrayDeque<>();
+    private long offset = 0;
+    // The number of lines returned by next().
+    private int read = 0;
+
+    private SpillCursor(Path file, int count) {
+      this.file = file;
+      this.count = count;
+    }
+
+    private String next() {
+      if (chunk.isEmpty()) {
+        readChunk();
+      }
+      read++;
+      return chunk.poll();
+    }
+
+    /** Reads the complete lines of at least one block, and at least one line. */
+    private void readChunk() {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      ByteBuffer block = ByteBuffer.allocate(CHUNK_BYTES);
+      int buffered = 0;
+      try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+        channel.position(offset);
+        long position = offset;
+        while (chunk.isEmpty() && read + buffered < count) {
+          block.clear();
+          if (channel.read(block) == -1) {
+            break;
+          }
+          block.flip();
+          while (block.hasRemaining() && read + buffered < count) {
+            byte b = block.get();
+            position++;
+            if (b != '\n') {
+              line.write(b);
+              continue;
+            }
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            chunk.add(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+            buffered++;
+            offset = position;
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (chunk.isEmpty()) {
+        throw new IllegalStateException("The spill file " + file + " is missing lines");
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Looks for many substrings and regular expressions in the lines of an output in a single pass.
+ *
+ * <p>All the patterns are compiled once into a single alternation which is used to skip the lines
+ * matching none of them, so that only the few interesting lines are checked against each pattern.
+ * A matcher is immutable and can be reused across invocations:
+ *
+ * <pre>{@code
+ * private static final OutputMatcher BUILD_ERRORS =
+ *     OutputMatcher.builder().containing("ERROR:").matching("Couldn't build file .*").build();
+ *
+ * driver.bazel("build", "//...").run().assertErrorLinesMatchNone(BUILD_ERRORS);
+ * }</pre>
+ */
+public final class OutputMatcher {
+
+  private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(\\d|k<)");
+
+  private final List<String> descriptions;
+  private final List<Pattern> patterns;
+  // Null when the patterns cannot be combined, every line is then checked against each pattern.
+  private final Pattern anyPattern;
+
+  private OutputMatcher(List<String> descriptions, List<Pattern> patterns) {
+    this.descriptions = descriptions;
+    this.patterns = patterns;
+    this.anyPattern = combine(patterns);
+  }
+
+  /**
+   * Returns the alternation of {@code patterns}, or null if they cannot be combined: compilation
+   * flags would be lost, group numbers of back references would be shifted and named groups may
+   * clash.
+   */
+  private static Pattern combine(List<Pattern> patterns) {
+    for (Pattern pattern : patterns) {
+      if (pattern.flags() != 0 || BACK_REFERENCE.matcher(pattern.pattern()).find()) {
+        return null;
+      }
+    }
+    try {
+      return Pattern.compile(
+          patterns.stream().map(p -> "(?:" + p.pattern() + ")").collect(Collectors.joining("|")));
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+  }
+
+  /** Returns a {@link Builder} to create an {@link OutputMatcher}. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the descriptions of all the patterns of this matcher. */
+  public Set<String> patterns() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(descriptions));
+  }
+
+  /**
+   * Returns the descriptions of the patterns found in {@code lines}. Stops reading the lines as
+   * soon as all the patterns are found.
+   */
+  public Set<String> findIn(Iterable<String> lines) {
+    Set<String> found = new LinkedHashSet<>();
+    boolean[] matched = new boolean[patterns.size()];
+    int remaining = patterns.size();
+    Iterator<String> iterator = lines.iterator();
+    while (remaining > 0 && iterator.hasNext()) {
+      String line = iterator.next();
+      if (anyPattern != null && !anyPattern.matcher(line).find()) {
+        continue;
+      }
+      for (int i = 0; i < patterns.size(); i++) {
+        if (!matched[i] && patterns.get(i).matcher(line).find()) {
+          matched[i] = true;
+          remaining--;
+          found.add(descriptions.get(i));
+        }
+      }
+    }
+    return found;
+  }
+
+  /** Same as {@link #findIn(Iterable)} for a stream of lines. */
+  public Set<String> findIn(Stream<String> lines) {
+    return findIn((Iterable<String>) lines::iterator);
+  }
+
+  /** Returns the descriptions of the patterns not found in {@code lines}. */
+  public Set<String> missingIn(Iterable<String> lines) {
+    Set<String> missing = new LinkedHashSet<>(descriptions);
+    missing.removeAll(findIn(lines));
+    return missing;
+  }
+
+  /** Same as {@link #missingIn(Iterable)} for a stream of lines. */
+  public Set<String> missingIn(Stream<String> lines) {
+    return missingIn((Iterable<String>) lines::iterator);
+  }
+
+  /** Returns true if all the patterns are found in {@code lines}. */
+  public boolean matchesAll(Iterable<String> lines) {
+    return findIn(lines).size() == patterns().size();
+  }
+
+  /** Returns true if at least one of the patterns is found in {@code lines}. */
+  public boolean matchesAny(Iterable<String> lines) {
+    return StreamSupport.stream(lines.spliterator(), false).anyMatch(this::matchesAny);
+  }
+
+  private boolean matchesAny(String line) {
+    if (anyPattern != null) {
+      return anyPattern.matcher(line).find();
+    }
+    return patterns.stream().anyMatch(pattern -> pattern.matcher(line).find());
+  }
+
+  @Override
+  public String toString() {
+    return descriptions.toString();
+  }
+
+  /** A builder class to generate an {@link OutputMatcher} object. */
+  public static final class Builder {
+    private final List<String> descriptions = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    private Builder() {}
+
+    /** Adds substrings to look for. */
+    public Builder containing(String... substrings) {
+      for (String substring : substrings) {
+        descriptions.add(substring);
+        patterns.add(Pattern.compile(Pattern.quote(substring)));
+      }
+      return this;
+    }
+
+    /** Adds regular expressions to look for, they match if found anywhere in a line. */
+    public Builder matching(String... regexes) {
+      for (String regex : regexes) {
+        matching(Pattern.compile(regex));
+      }
+      return this;
+    }
+
+    /** Adds a compiled regular expression to look for, it matches if found anywhere in a line. */
+    public Builder matching(Pattern pattern) {
+      descriptions.add("/" + pattern.pattern() + "/");
+      patterns.add(pattern);
+      return this;
+    }
+
+    /** Build an {@link OutputMatcher} object. */
+    public OutputMatcher build() {
+      if (patterns.isEmpty()) {
+        throw new IllegalStateException("An OutputMatcher needs at least one pattern");
+      }
+      return new OutputMatcher(
+          Collections.unmodifiableList(new ArrayList<>(descriptions)),
+          Collections.unmodifiableList(new ArrayList<>(patterns)));
+    }
+  }
+}
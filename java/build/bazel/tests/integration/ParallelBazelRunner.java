@@ -0,0 +1,108 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerScheduler;
+import org.junit.runners.model.Statement;
+
+/**
+ * A JUnit runner running the test methods of a {@link BazelBaseTestCase} concurrently.
+ *
+ * <p>Each test method gets an isolated output user root from {@link
+ * WorkspaceDriver#runTestsInParallel(int)}, so the Bazel invocations of concurrent tests never
+ * share a server. The degree of parallelism is taken from the {@link Parallelism} annotation of the
+ * class, then from the {@code bazel.test.parallelism} system property, and defaults to the number
+ * of available processors:
+ *
+ * <pre>{@code
+ * @RunWith(ParallelBazelRunner.class)
+ * @ParallelBazelRunner.Parallelism(4)
+ * public class MyTest extends BazelBaseTestCase { ... }
+ * }</pre>
+ *
+ * <p>The test methods must not share mutable state beyond what the driver provides.
+ */
+public class ParallelBazelRunner extends BlockJUnit4ClassRunner {
+
+  /** The maximum number of test methods of the annotated class running concurrently. */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.TYPE)
+  public @interface Parallelism {
+    int value();
+  }
+
+  private final int parallelism;
+
+  public ParallelBazelRunner(Class<?> klass) throws InitializationError {
+    super(klass);
+    this.parallelism = parallelism(klass);
+    setScheduler(new ThreadPoolScheduler(parallelism));
+  }
+
+  private static int parallelism(Class<?> klass) {
+    Parallelism annotation = klass.getAnnotation(Parallelism.class);
+    if (annotation != null) {
+      return annotation.value();
+    }
+    return Integer.getInteger(
+        "bazel.test.parallelism", Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Sets up the parallel slots once the {@code BeforeClass} methods have set up the driver. */
+  @Override
+  protected Statement withBeforeClasses(Statement statement) {
+    Statement next =
+        new Statement() {
+          @Override
+          public void evaluate() throws Throwable {
+            WorkspaceDriver.runTestsInParallel(parallelism);
+            statement.evaluate();
+          }
+        };
+    return super.withBeforeClasses(next);
+  }
+
+  private static final class ThreadPoolScheduler implements RunnerScheduler {
+    private final ExecutorService executor;
+
+    private ThreadPoolScheduler(int parallelism) {
+      this.executor = Executors2.daemonPool("parallel-bazel-test", parallelism);
+    }
+
+    @Override
+    public void schedule(Runnable childStatement) {
+      executor.execute(childStatement);
+    }
+
+    @Override
+    public void finished() {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
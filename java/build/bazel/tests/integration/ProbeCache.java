@@ -0,0 +1,198 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A small on-disk manifest of the facts probed while setting up a test class, such as the Java
+ * toolchain matching a Java home or the digest of a Bazel binary, so that they are computed once
+ * instead of once per test class and test target.
+ *
+ * <p>Keys describing a file should be built with {@link #fileKey}, which includes its modification
+ * time and size, so that an entry is ignored once the file changes. The manifest lives in the
+ * {@link SharedStorage} directory when there is one, and is then shared by the test processes of
+ * the machine: it is only written while holding a file lock, and replaced atomically so that
+ * readers never see it half-written.
+ *
+ * <p>The probes run without holding any lock: concurrent callers asking for the same key in this
+ * process wait for the running probe, while distinct keys are probed in parallel. Two processes
+ * may probe the same key at the same time, they then record the same value.
+ */
+final class ProbeCache {
+
+  /** Computes the value of an entry missing from the cache. */
+  @FunctionalInterface
+  interface Probe {
+    String run() throws IOException, InterruptedException;
+  }
+
+  private final Path file;
+  private final Map<String, String> entries = new ConcurrentHashMap<>();
+  // The entries probed by this process and not written to the manifest yet.
+  private final Map<String, String> unsaved = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<String>> probing = new ConcurrentHashMap<>();
+  // The modification time of the manifest when it was last read, null if it was never read.
+  private volatile FileTime loaded = null;
+
+  ProbeCache(Path file) {
+    this.file = file;
+  }
+
+  /** Returns the file backing this cache. */
+  Path file() {
+    return file;
+  }
+
+  /**
+   * Returns the cached value of {@code key}, running {@code probe} and recording its result in the
+   * manifest if there is none. Concurrent callers of this process wait for the probe instead of
+   * running it again.
+   */
+  String get(String key, Probe probe) throws IOException, InterruptedException {
+    String value = getUnsaved(key, probe);
+    flush();
+    return value;
+  }
+
+  /**
+   * Same as {@link #get}, but a new entry is only written to the manifest by the next {@link
+   * #flush()}, so that a batch of probes rewrites the manifest once.
+   */
+  String getUnsaved(String key, Probe probe) throws IOException, InterruptedException {
+    String value = entries.get(key);
+    if (value != null) {
+      return value;
+    }
+    CompletableFuture<String> result = new CompletableFuture<>();
+    CompletableFuture<String> running = probing.putIfAbsent(key, result);
+    if (running != null) {
+      return await(running);
+    }
+    try {
+      // Another process may have probed it since we read the manifest.
+      reloadIfChanged();
+      value = entries.get(key);
+      if (value == null) {
+        value = probe.run();
+        entries.put(key, value);
+        unsaved.put(key, value);
+      }
+      result.complete(value);
+      return value;
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      result.completeExceptionally(e);
+      throw e;
+    } finally {
+      probing.remove(key, result);
+    }
+  }
+
+  /** Writes the entries probed since the last call to the manifest, merged with its content. */
+  void flush() throws IOException, InterruptedException {
+    if (unsaved.isEmpty()) {
+      return;
+    }
+    SharedStorage.withLock(
+        file.resolveSibling(file.getFileName() + ".lock"),
+        () -> {
+          Map<String, String> saving = new HashMap<>(unsaved);
+          if (saving.isEmpty()) {
+            // Written by a concurrent flush.
+            return null;
+          }
+          Properties manifest = read();
+          manifest.putAll(saving);
+          store(manifest);
+          saving.forEach(unsaved::remove);
+          return null;
+        });
+  }
+
+  private static String await(CompletableFuture<String> running)
+      throws IOException, InterruptedException {
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw new InterruptedException(cause.getMessage());
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /** Returns a key for a fact about {@code path}, which is invalidated when the file changes. */
+  static String fileKey(String fact, Path path) throws IOException {
+    Path real = path.toRealPath();
+    return fact
+        + ":"
+        + real
+        + "@"
+        + Files.getLastModifiedTime(real).toMillis()
+        + ":"
+        + Files.size(real);
+  }
+
+  private void reloadIfChanged() throws IOException {
+    if (!Files.exists(file)) {
+      return;
+    }
+    FileTime modified = Files.getLastModifiedTime(file);
+    if (modified.equals(loaded)) {
+      return;
+    }
+    read().forEach((key, value) -> entries.putIfAbsent((String) key, (String) value));
+    loaded = modified;
+  }
+
+  private Properties read() throws IOException {
+    Properties manifest = new Properties();
+    if (Files.exists(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        manifest.load(in);
+      }
+    }
+    return manifest;
+  }
+
+  private void store(Properties manifest) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try (OutputStream out = Files.newOutputStream(temporary)) {
+      manifest.store(out, "Facts probed by the Bazel integration testing framework");
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
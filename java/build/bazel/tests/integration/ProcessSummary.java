@@ -0,0 +1,112 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The summary of the processes spawned by a Bazel build, as printed at the end of the build, for
+ * instance {@code INFO: 7 processes: 5 disk cache hit, 2 linux-sandbox.}
+ *
+ * <p>It tells how many actions were served by a cache: older versions of Bazel report disk cache
+ * hits as {@code remote cache hit}, {@link #cacheHits()} counts both.
+ */
+public final class ProcessSummary {
+
+  private static final Pattern SUMMARY =
+      Pattern.compile("(?:^|\\s)(\\d+) process(?:es)?(?:: (.*?))?\\.?\\s*$");
+  private static final Pattern COUNT = Pattern.compile("(\\d+) (.+)");
+
+  /** The summary of an invocation which did not spawn any process. */
+  static final ProcessSummary EMPTY = new ProcessSummary(0, Collections.emptyMap());
+
+  private final int total;
+  private final Map<String, Integer> byKind;
+
+  private ProcessSummary(int total, Map<String, Integer> byKind) {
+    this.total = total;
+    this.byKind = byKind;
+  }
+
+  /** Returns the last summary found in {@code lines}, or {@link #EMPTY} if there is none. */
+  static ProcessSummary parse(Iterable<String> lines) {
+    ProcessSummary summary = EMPTY;
+    for (String line : lines) {
+      if (!line.contains(" process")) {
+        continue;
+      }
+      Matcher matcher = SUMMARY.matcher(line);
+      if (!matcher.find()) {
+        continue;
+      }
+      Map<String, Integer> byKind = new LinkedHashMap<>();
+      if (matcher.group(2) != null) {
+        for (String part : matcher.group(2).split(",")) {
+          Matcher count = COUNT.matcher(part.trim());
+          if (count.matches()) {
+            byKind.merge(count.group(2), Integer.parseInt(count.group(1)), Integer::sum);
+          }
+        }
+      }
+      summary =
+          new ProcessSummary(
+              Integer.parseInt(matcher.group(1)), Collections.unmodifiableMap(byKind));
+    }
+    return summary;
+  }
+
+  /** Returns the total number of processes. */
+  public int total() {
+    return total;
+  }
+
+  /**
+   * Returns the number of processes per kind, such as {@code disk cache hit}, {@code remote cache
+   * hit}, {@code internal} or the name of the spawn strategy.
+   */
+  public Map<String, Integer> byKind() {
+    return byKind;
+  }
+
+  /** Returns the number of processes of {@code kind}. */
+  public int count(String kind) {
+    return byKind.getOrDefault(kind, 0);
+  }
+
+  /** Returns the number of processes served by any cache. */
+  public int cacheHits() {
+    return byKind.entrySet().stream()
+        .filter(entry -> entry.getKey().endsWith("cache hit"))
+        .mapToInt(Map.Entry::getValue)
+        .sum();
+  }
+
+  /**
+   * Returns the number of processes which were actually executed, that is neither served by a
+   * cache nor internal to Bazel.
+   */
+  public int cacheMisses() {
+    return total - cacheHits() - count("internal");
+  }
+
+  @Override
+  public String toString() {
+    return total + " processes: " + byKind;
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Utilities to signal and kill a process together with all its descendants.
+ *
+ * <p>The library targets Java 8, which has no {@code ProcessHandle}, so the process tree is
+ * discovered with {@code pgrep} on POSIX systems and killed with {@code taskkill /T} on Windows.
+ */
+final class ProcessTrees {
+
+  private ProcessTrees() {}
+
+  /**
+   * Returns the pid of {@code process}, or -1 if it is unknown. {@code Process.pid()} only exists
+   * since Java 9: on Java 8 the pid is read from the private {@code pid} field of {@code
+   * java.lang.UNIXProcess}. The Windows implementation of Java 8 only has a handle, the pid is then
+   * unknown and callers fall back to killing the direct child only.
+   */
+  static long pid(Process process) {
+    try {
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (NoSuchMethodException e) {
+      return java8Pid(process);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+
+  private static long java8Pid(Process process) {
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /** Asks the JVM running as {@code pid} to print the stack traces of its threads. */
+  static void requestThreadDump(long pid) throws IOException, InterruptedException {
+    if (OS.isPosixCompatible()) {
+      run("kill", "-QUIT", Long.toString(pid));
+    }
+  }
+
+  /** Forcibly kills {@code pid} and all its descendants. */
+  static void killTree(long pid) throws IOException, InterruptedException {
+    if (OS.getCurrent() == OS.WINDOWS) {
+      run("taskkill", "/F", "/T", "/PID", Long.toString(pid));
+      return;
+    }
+    List<String> tree = stopDescendantsAndSelf(pid);
+    List<String> kill = new ArrayList<>();
+    kill.add("kill");
+    kill.add("-KILL");
+    kill.addAll(tree);
+    run(kill);
+  }
+
+  /**
+   * Stops {@code pid} and all its descendants, and returns their pids. Each process is stopped as
+   * soon as it is discovered, before its children are listed, so that it cannot fork a child which
+   * would escape the walk.
+   */
+  private static List<String> stopDescendantsAndSelf(long pid)
+      throws IOException, InterruptedException {
+    List<String> result = new ArrayList<>();
+    Deque<String> toVisit = new ArrayDeque<>();
+    toVisit.add(Long.toString(pid));
+    while (!toVisit.isEmpty()) {
+      String current = toVisit.poll();
+      run("kill", "-STOP", current);
+      result.add(current);
+      Command children = Command.builder().addArguments("pgrep", "-P", current).build();
+      children.run();
+      for (String child : children.getOutputLines()) {
+        if (!child.trim().isEmpty()) {
+          toVisit.add(child.trim());
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void run(String... args) throws IOException, InterruptedException {
+    Command.builder().addArguments(args).build().run();
+  }
+
+  private static void run(List<String> args) throws IOException, InterruptedException {
+    Command.builder().addArguments(args).build().run();
+  }
+}
@@ -15,17 +15,29 @@
 package build.bazel.tests.integration;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * This class interfaces with the Bazel repository cache.
@@ -57,6 +69,15 @@ import java.util.Set;
 public class RepositoryCache {
 
   private final Path cachePath;
+  // The directory of the test holding the cache: the files under it may be hard linked.
+  private final Path ownedRoot;
+  // For the files of the test and the entries of the shared store.
+  private final FileCloner cloner = new FileCloner();
+  // For the other files, such as those of the output base of the outer Bazel, whose inodes the
+  // inner Bazel must not touch.
+  private final FileCloner foreignCloner = FileCloner.withoutHardLinks();
+  // Entries sharing their inode with the original file, which must not be frozen.
+  private final Set<Path> hardLinkedEntries = ConcurrentHashMap.newKeySet();
 
   // Repository cache subdirectories
   private static final String CAS_DIR = "content_addressable";
@@ -67,19 +88,181 @@ public class RepositoryCache {
   // The only key type currently accepted here
   public static final String KEY_TYPE = "sha256";
 
+  private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+
+  // Remembers the digests of the files, may be null.
+  private final ProbeCache digests;
+  // The machine-wide store the entries are cloned from, may be null.
+  private final SharedContentStore store;
+
   public RepositoryCache(Path cachePath) {
+    this(cachePath, null, null);
+  }
+
+  RepositoryCache(Path cachePath, ProbeCache digests, SharedContentStore store) {
     this.cachePath = cachePath;
+    this.ownedRoot = cachePath.toAbsolutePath().getParent();
+    this.digests = digests;
+    this.store = store;
   }
 
-  /** Add a file to the cache. The file name should be the sha256 digest of the file content. */
+  /**
+   * Add a file to the cache. The file name must be the sha256 digest of the file content.
+   *
+   * @see #putAll(Collection)
+   */
   public void put(Path sourcePath) throws IOException {
-    Path sha256 = sourcePath.getFileName();
-    // TODO: assert the sha256 key is valid, maybe even compare to content?
-    Path cacheEntry = cachePath.resolve(CAS_DIR).resolve(KEY_TYPE).resolve(sha256);
-    Files.createDirectories(cacheEntry);
-    // RepositoryCache touches on cache hit which doesn't work on linux with links
-    // https://github.com/bazelbuild/bazel/commit/e0d80356eed398691938ea3f18bb0ce14e0eefc3
-    Files.copy(sourcePath.toAbsolutePath(), cacheEntry.resolve(DEFAULT_CACHE_FILENAME));
+    putAll(Collections.singletonList(sourcePath));
+  }
+
+  /**
+   * Adds files to the cache, in parallel. The name of each file must be the sha256 digest of its
+   * content, which is checked before adding it. A file already in the cache with the right content
+   * is skipped, one with another content is replaced.
+   *
+   * <p>The files are cloned with the cheapest strategy the file system supports, see {@link
+   * #populationStrategy()}. Only the files under the directory holding the cache and the entries
+   * of the shared store are hard linked, the others are reflinked or copied.
+   *
+   * @throws IllegalArgumentException if a file name is not a sha256 digest, before adding any file
+   * @throws ChecksumMismatchException if the content of a file does not match its name. The files
+   *     not added yet are then skipped.
+   */
+  public void putAll(Collection<Path> sourcePaths) throws IOException {
+    for (Path sourcePath : sourcePaths) {
+      if (!SHA256.matcher(sourcePath.getFileName().toString()).matches()) {
+        throw new IllegalArgumentException(
+            "The name of " + sourcePath + " is not the sha256 digest of its content");
+      }
+    }
+    CompletionService<Void> completion = new ExecutorCompletionService<>(Executors2.CPU_BOUND);
+    List<Future<Void>> pending = new ArrayList<>();
+    // The same file listed twice would be ingested concurrently.
+    for (Path sourcePath : new LinkedHashSet<>(sourcePaths)) {
+      pending.add(completion.submit(() -> ingest(sourcePath), null));
+    }
+    try {
+      for (int i = 0; i < pending.size(); i++) {
+        completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while populating the repository cache");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      // Fail fast: stop ingesting the other files on the first failure.
+      for (Future<Void> future : pending) {
+        future.cancel(true);
+      }
+    }
+    if (digests != null) {
+      // The digests computed by the batch are written to the manifest at once.
+      try {
+        digests.flush();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while recording the digests of the files");
+      }
+    }
+  }
+
+  private void ingest(Path sourcePath) {
+    try {
+      String sha256 = sourcePath.getFileName().toString();
+      Path cacheEntry = cachePath.resolve(CAS_DIR).resolve(KEY_TYPE).resolve(sha256);
+      Path file = cacheEntry.resolve(DEFAULT_CACHE_FILENAME);
+      if (Files.exists(file)) {
+        if (sha256.equals(Digests.sha256(file))) {
+          return;
+        }
+        Files.delete(file);
+      }
+      String actual = digest(sourcePath);
+      if (!sha256.equals(actual)) {
+        throw new ChecksumMismatchException(sourcePath, sha256, actual);
+      }
+      Files.createDirectories(cacheEntry);
+      // RepositoryCache touches on cache hit which doesn't work on linux with symbolic links
+      // https://github.com/bazelbuild/bazel/commit/e0d80356eed398691938ea3f18bb0ce14e0eefc3
+      // Reflinks and copies are files of their own. Touching a hard link succeeds, it updates the
+      // modification time of the original, which is why only the files owned by the test are
+      // hard linked.
+      if (cloneIntoCache(sha256, sourcePath.toAbsolutePath(), file) == CloneStrategy.HARDLINK) {
+        hardLinkedEntries.add(file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private CloneStrategy cloneIntoCache(String sha256, Path sourcePath, Path file)
+      throws IOException {
+    if (store == null) {
+      return (isOwned(sourcePath) ? cloner : foreignCloner).clone(sourcePath, file);
+    }
+    try {
+      try {
+        return cloner.clone(store.put(sha256, sourcePath), file);
+      } catch (NoSuchFileException e) {
+        // Evicted by another test process in the meantime.
+        return cloner.clone(store.put(sha256, sourcePath), file);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while populating the repository cache");
+    }
+  }
+
+  private boolean isOwned(Path sourcePath) throws IOException {
+    return ownedRoot != null
+        && Files.isDirectory(ownedRoot)
+        && sourcePath.toRealPath().startsWith(ownedRoot.toRealPath());
+  }
+
+  private String digest(Path file) throws IOException {
+    if (digests == null) {
+      return Digests.sha256(file);
+    }
+    try {
+      return digests.getUnsaved(
+          ProbeCache.fileKey("sha256", file), () -> Digests.sha256(file));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while computing the digest of " + file);
+    }
+  }
+
+  /** Thrown when the content of a file does not match the sha256 digest it is named after. */
+  public static class ChecksumMismatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private ChecksumMismatchException(Path file, String expected, String actual) {
+      super(
+          "The sha256 digest of "
+              + file
+              + " is "
+              + actual
+              + ", but its name says "
+              + expected
+              + ". Bazel would ignore this cache entry and download the file again.");
+    }
+  }
+
+  /**
+   * Returns how the files were added to the cache: the most expensive strategy used so far, or the
+   * cheapest one that will be tried if the cache is still empty.
+   */
+  public CloneStrategy populationStrategy() {
+    CloneStrategy owned = cloner.strategy();
+    CloneStrategy foreign = foreignCloner.strategy();
+    return owned.ordinal() > foreign.ordinal() ? owned : foreign;
   }
 
   /** Returns the options to pass to Bazel for it to use the repository cache. */
@@ -109,6 +292,8 @@ public class RepositoryCache {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
               if (file.getFileSystem().isReadOnly()) return FileVisitResult.CONTINUE;
+              // The permissions are shared with the original file, which we must not change.
+              if (hardLinkedEntries.contains(file)) return FileVisitResult.CONTINUE;
               if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
                 Set<PosixFilePermission> perms = new HashSet<>();
                 perms.add(PosixFilePermission.OWNER_READ);
@@ -0,0 +1,151 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A pool of fresh workspaces whose Bazel server was started in the background, so that the first
+ * invocation of a test does not pay the startup of the server JVM.
+ *
+ * <p>Each pooled workspace has its own output base, the server is started there by a cheap {@code
+ * info} invocation while the previous tests run. Taking a workspace from the pool schedules the
+ * start of a replacement. There is one pool per Bazel binary and startup options, and thus per
+ * output user root: the servers are only handed out to the tests using the root they were started
+ * under. The servers are tracked by the given {@link BazelServers}, and the ones never taken are
+ * shut down when the pool is closed.
+ */
+final class ServerPool {
+
+  private static final ExecutorService EXECUTOR =
+      Executors2.cachedDaemonPool("bazel-server-pool");
+
+  private final int size;
+  private final Path workspaceRoot;
+  private final BazelServers servers;
+  private final Map<String, Pool> pools = new HashMap<>();
+
+  ServerPool(int size, Path workspaceRoot, BazelServers servers) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The pool size must be at least 1");
+    }
+    this.size = size;
+    this.workspaceRoot = workspaceRoot;
+    this.servers = servers;
+  }
+
+  /**
+   * Starts servers in the background until the pool for these options is full. {@code
+   * startupOptions} must set {@code outputUserRoot} as the output user root.
+   */
+  synchronized void fill(Path bazel, Path outputUserRoot, List<String> startupOptions) {
+    Deque<Future<Path>> pool = pool(bazel, outputUserRoot, startupOptions).workspaces;
+    while (pool.size() < size) {
+      pool.add(EXECUTOR.submit(() -> preStart(bazel, outputUserRoot, startupOptions)));
+    }
+  }
+
+  /**
+   * Returns a workspace whose server runs with {@code startupOptions}, waiting for it to be ready
+   * if needed, and starts a replacement in the background.
+   */
+  Path take(Path bazel, Path outputUserRoot, List<String> startupOptions)
+      throws IOException, InterruptedException {
+    Future<Path> next;
+    synchronized (this) {
+      fill(bazel, outputUserRoot, startupOptions);
+      next = pool(bazel, outputUserRoot, startupOptions).workspaces.poll();
+      fill(bazel, outputUserRoot, startupOptions);
+    }
+    try {
+      return next.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IllegalStateException("Could not start a Bazel server in the background", cause);
+    }
+  }
+
+  /**
+   * Stops starting new servers, waits for the ones being started and shuts down all the servers
+   * that were not taken.
+   */
+  synchronized void close() throws InterruptedException {
+    for (Pool pool : pools.values()) {
+      for (Future<Path> workspace : pool.workspaces) {
+        if (workspace.cancel(false)) {
+          continue;
+        }
+        try {
+          servers.shutdown(pool.outputUserRoot, workspace.get());
+        } catch (ExecutionException | CancellationException | IOException e) {
+          // Nothing to shut down, or the server is left to its tracker.
+        }
+      }
+    }
+    pools.clear();
+  }
+
+  private Pool pool(Path bazel, Path outputUserRoot, List<String> startupOptions) {
+    return pools.computeIfAbsent(
+        bazel + " " + String.join(" ", startupOptions), key -> new Pool(outputUserRoot));
+  }
+
+  private Path preStart(Path bazel, Path outputUserRoot, List<String> startupOptions)
+      throws IOException, InterruptedException {
+    Path workspace = Files.createTempDirectory(workspaceRoot, "pooled-workspace");
+    Files.createFile(workspace.resolve("WORKSPACE"));
+    servers.track(bazel, startupOptions, outputUserRoot, workspace);
+    List<String> command = new ArrayList<>();
+    command.add(bazel.toString());
+    command.addAll(startupOptions);
+    command.add("--bazelrc=/dev/null");
+    command.add("info");
+    command.add("release");
+    Command info = Command.builder().setDirectory(workspace).addArguments(command).build();
+    if (info.run() != 0) {
+      throw new IOException(
+          "Could not start a Bazel server in "
+              + workspace
+              + ":\n"
+              + String.join("\n", info.getErrorLines()));
+    }
+    return workspace;
+  }
+
+  /** The workspaces being started for one Bazel binary and set of startup options. */
+  private static final class Pool {
+    private final Path outputUserRoot;
+    private final Deque<Future<Path>> workspaces = new ArrayDeque<>();
+
+    private Pool(Path outputUserRoot) {
+      this.outputUserRoot = outputUserRoot;
+    }
+  }
+}
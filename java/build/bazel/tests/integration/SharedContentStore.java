@@ -0,0 +1,160 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A machine-wide store of files named after their sha256 digest, from which the {@link
+ * RepositoryCache} of each test target is populated, so that the external dependencies are
+ * materialized once per machine instead of once per test target and Bazel version.
+ *
+ * <p>Each entry is a directory {@code <sha256>/file}. A file is first cloned to a temporary file
+ * and then moved into place atomically, so that readers never see a partial entry. The
+ * modification time of the entry directory records its last use, and {@link #evict()} deletes the
+ * least recently used entries until the store fits in its size cap. Adding and evicting entries
+ * hold a file lock, so that the store can be shared by concurrent test processes.
+ */
+final class SharedContentStore {
+
+  private static final String FILE = "file";
+
+  private final Path root;
+  private final long maxBytes;
+  // The sources belong to the caller, for instance to the output base of the outer Bazel.
+  private final FileCloner cloner = FileCloner.withoutHardLinks();
+
+  SharedContentStore(Path root, long maxBytes) {
+    this.root = root;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the file stored for {@code sha256}, adding {@code source} to the store if it is not
+   * there yet. The content of {@code source} must already have been checked against {@code
+   * sha256}. The returned file may be evicted by another process at any time, callers should add
+   * it again if it is gone by the time they use it.
+   */
+  Path put(String sha256, Path source) throws IOException, InterruptedException {
+    Path entry = root.resolve(sha256);
+    Path file = entry.resolve(FILE);
+    if (Files.exists(file) && touchIfPresent(entry)) {
+      return file;
+    }
+    Path temporary =
+        Files.createDirectories(root.resolve(".tmp")).resolve(sha256 + "-" + UUID.randomUUID());
+    cloner.clone(source, temporary);
+    try {
+      SharedStorage.withLock(
+          lockFile(),
+          () -> {
+            if (!Files.exists(file)) {
+              Files.createDirectories(entry);
+              Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return null;
+          });
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return file;
+  }
+
+  /** Records that {@code entry} was used, returns false if it was evicted in the meantime. */
+  private boolean touchIfPresent(Path entry) throws IOException, InterruptedException {
+    return SharedStorage.withLock(
+        lockFile(),
+        () -> {
+          try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return Files.exists(entry.resolve(FILE));
+          } catch (NoSuchFileException e) {
+            return false;
+          }
+        });
+  }
+
+  /** Returns the total size of the stored files. */
+  long size() throws IOException {
+    return entries().stream().mapToLong(SharedContentStore::entrySize).sum();
+  }
+
+  /**
+   * Deletes the least recently used entries until the store is no larger than its size cap. The
+   * files already linked elsewhere are not affected.
+   */
+  void evict() throws IOException, InterruptedException {
+    SharedStorage.withLock(
+        lockFile(),
+        () -> {
+          List<Path> entries = entries();
+          long size = entries.stream().mapToLong(SharedContentStore::entrySize).sum();
+          entries.sort(Comparator.comparingLong(SharedContentStore::lastUse));
+          for (Path entry : entries) {
+            if (size <= maxBytes) {
+              break;
+            }
+            size -= entrySize(entry);
+            Files.deleteIfExists(entry.resolve(FILE));
+            Files.deleteIfExists(entry);
+          }
+          return null;
+        });
+  }
+
+  private Path lockFile() {
+    return root.resolve(".lock");
+  }
+
+  private List<Path> entries() throws IOException {
+    if (!Files.isDirectory(root)) {
+      return new ArrayList<>();
+    }
+    try (Stream<Path> children = Files.list(root)) {
+      return children
+          .filter(child -> !child.getFileName().toString().startsWith("."))
+          .filter(Files::isDirectory)
+          .collect(Collectors.toCollection(ArrayList::new));
+    }
+  }
+
+  private static long entrySize(Path entry) {
+    try {
+      return Files.size(entry.resolve(FILE));
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static long lastUse(Path entry) {
+    try {
+      return Files.getLastModifiedTime(entry).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory shared by the test processes of a machine, to reuse expensive artifacts such as
+ * extracted Bazel install bases across test targets.
+ *
+ * <p>It is configured with the {@code bazel.integration.shared_dir} system property or the {@code
+ * BAZEL_INTEGRATION_SHARED_DIR} environment variable (to be passed with {@code --test_env}). The
+ * directory must be writable from the test sandbox, for instance with {@code
+ * --sandbox_writable_path}. When it is not configured, each test target falls back to its own
+ * temporary directory.
+ *
+ * <p>Concurrent writers, in this process or in others, are serialized with {@link #withLock}.
+ */
+final class SharedStorage {
+
+  static final String PROPERTY = "bazel.integration.shared_dir";
+  static final String ENVIRONMENT_VARIABLE = "BAZEL_INTEGRATION_SHARED_DIR";
+
+  // File locks are held by the whole process, they do not exclude threads of the same process.
+  private static final Map<Path, Object> processLocks = new ConcurrentHashMap<>();
+
+  private SharedStorage() {}
+
+  /** Returns the shared directory, or {@code fallback} if none is configured. */
+  static Path root(Path fallback) throws IOException {
+    String configured = setting(PROPERTY, ENVIRONMENT_VARIABLE);
+    if (configured == null) {
+      return fallback;
+    }
+    return Files.createDirectories(Paths.get(configured));
+  }
+
+  /**
+   * Returns the value of the system property {@code property}, or of the environment variable
+   * {@code environmentVariable}, or null if none is set.
+   */
+  static String setting(String property, String environmentVariable) {
+    String value = System.getProperty(property, System.getenv(environmentVariable));
+    return value == null || value.isEmpty() ? null : value;
+  }
+
+  /** Something to run while holding a lock. */
+  @FunctionalInterface
+  interface LockedAction<T> {
+    T run() throws IOException, InterruptedException;
+  }
+
+  /**
+   * Runs {@code action} while holding an exclusive lock on {@code lockFile}, which excludes both
+   * the other threads of this process and the other processes.
+   */
+  static <T> T withLock(Path lockFile, LockedAction<T> action)
+      throws IOException, InterruptedException {
+    Path key = lockFile.toAbsolutePath().normalize();
+    Object processLock = processLocks.computeIfAbsent(key, k -> new Object());
+    synchronized (processLock) {
+      Files.createDirectories(key.getParent());
+      try (FileChannel channel =
+          FileChannel.open(key, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          return action.run();
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A copy of a workspace and of its output base, taken by {@link WorkspaceDriver#snapshot()} after
+ * a warm-up build and cloned by {@link WorkspaceDriver#restore(WarmSnapshot)}, so that tests of
+ * incremental builds start from a fetched, analyzed and built state.
+ *
+ * <p>The workspace is kept as a {@link WorkspaceTemplate}. The read-only files of the output base,
+ * that is the outputs of the actions and the files of the external repositories, are cloned as
+ * hard links when possible: Bazel deletes an output before it writes it again. The other files,
+ * such as the action cache, are copied. The symbolic links pointing into the original workspace
+ * or output base are rewritten to point into the new ones. Files embedding these paths in their
+ * content are not rewritten, Bazel notices and redoes the work concerned.
+ */
+public final class WarmSnapshot {
+
+  // Top-level entries of the output base that belong to a running server, or to the actions it
+  // was running.
+  private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList("server", "lock"));
+
+  private static final String DO_NOT_BUILD_HERE = "DO_NOT_BUILD_HERE";
+
+  private final Path bazel;
+  private final WorkspaceTemplate workspace;
+  private final Path outputBase;
+  private final Path originalWorkspace;
+  // Bazel resolves the symbolic links in the path of the workspace.
+  private final Path originalRealWorkspace;
+  private final Path originalOutputBase;
+  private final FileCloner linker = new FileCloner(CloneStrategy.HARDLINK);
+
+  private WarmSnapshot(
+      Path bazel,
+      WorkspaceTemplate workspace,
+      Path outputBase,
+      Path originalWorkspace,
+      Path originalRealWorkspace,
+      Path originalOutputBase) {
+    this.bazel = bazel;
+    this.workspace = workspace;
+    this.outputBase = outputBase;
+    this.originalWorkspace = originalWorkspace;
+    this.originalRealWorkspace = originalRealWorkspace;
+    this.originalOutputBase = originalOutputBase;
+  }
+
+  /**
+   * Copies {@code workspace} and {@code outputBase} under {@code root}, which must not exist. The
+   * server of the output base must be shut down.
+   */
+  static WarmSnapshot take(Path bazel, Path workspace, Path outputBase, Path root)
+      throws IOException {
+    WorkspaceTemplate template = WorkspaceTemplate.freeze(workspace, root.resolve("workspace"));
+    Path outputBaseCopy = root.resolve("output_base");
+    FileCloner linker = new FileCloner(CloneStrategy.HARDLINK);
+    cloneOutputBase(outputBase, outputBaseCopy, new LinkedHashMap<>(), linker);
+    return new WarmSnapshot(
+        bazel, template, outputBaseCopy, workspace, workspace.toRealPath(), outputBase);
+  }
+
+  /** The Bazel binary the snapshot was taken with, which must be used with its clones. */
+  Path bazel() {
+    return bazel;
+  }
+
+  /**
+   * Clones the snapshot into {@code newWorkspace} and {@code newOutputBase}, the output base Bazel
+   * uses for {@code newWorkspace}.
+   */
+  void restoreInto(Path newWorkspace, Path newOutputBase) throws IOException {
+    workspace.cloneInto(newWorkspace);
+    Map<String, String> renames = new LinkedHashMap<>();
+    renames.put(originalOutputBase.toString(), newOutputBase.toString());
+    renames.put(originalWorkspace.toString(), newWorkspace.toString());
+    renames.put(originalRealWorkspace.toString(), newWorkspace.toRealPath().toString());
+    cloneOutputBase(outputBase, newOutputBase, renames, linker);
+    Path doNotBuildHere = newOutputBase.resolve(DO_NOT_BUILD_HERE);
+    if (Files.exists(doNotBuildHere)) {
+      Files.write(doNotBuildHere, newWorkspace.toRealPath().toString().getBytes(UTF_8));
+    }
+  }
+
+  private static void cloneOutputBase(
+      Path from, Path to, Map<String, String> renames, FileCloner linker) throws IOException {
+    Files.walkFileTree(
+        from,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Path relative = from.relativize(dir);
+            if (relative.getNameCount() == 1 && SKIPPED.contains(relative.toString())) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            Files.createDirectories(to.resolve(relative.toString()));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path relative = from.relativize(file);
+            if (relative.getNameCount() == 1 && SKIPPED.contains(relative.toString())) {
+              return FileVisitResult.CONTINUE;
+            }
+            Path target = to.resolve(relative.toString());
+            if (attrs.isSymbolicLink()) {
+              Files.createSymbolicLink(target, rename(Files.readSymbolicLink(file), renames));
+            } else if (WorkspaceTemplate.isFrozen(file)) {
+              linker.clone(file, target);
+            } else if (attrs.isRegularFile()) {
+              Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+              throws IOException {
+            if (exc != null) {
+              throw exc;
+            }
+            // Bazel makes some output directories read-only, they are filled before that.
+            Path target = to.resolve(from.relativize(dir).toString());
+            if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+              Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(dir));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /** Returns {@code link} with its first prefix found in {@code renames} replaced. */
+  private static Path rename(Path link, Map<String, String> renames) {
+    String target = link.toString();
+    String separator = link.getFileSystem().getSeparator();
+    for (Map.Entry<String, String> rename : renames.entrySet()) {
+      String from = rename.getKey();
+      if (target.equals(from) || target.startsWith(from + separator)) {
+        return link.getFileSystem().getPath(rename.getValue() + target.substring(from.length()));
+      }
+    }
+    return link;
+  }
+
+  @Override
+  public String toString() {
+    return "WarmSnapshot of " + originalWorkspace + " in " + workspace.root().getParent();
+  }
+}
@@ -18,36 +18,97 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class WorkspaceDriver {
 
-  private static Path tmp;
-  private static Map<String, Path> bazelVersions;
+  // The static state is set up once per class and then shared by the test methods, which may run
+  // concurrently (see runTestsInParallel()).
+  private static volatile Path tmp;
+  private static final Map<String, Path> bazelVersions = new ConcurrentHashMap<>();
+  private static final Map<Path, Path> installBases = new ConcurrentHashMap<>();
   private static Path runfileDirectory = Paths.get(System.getenv("TEST_SRCDIR"));
-  private static Properties properties;
+  private static volatile Properties properties;
 
-  private Path currentBazel = null;
+  // Servers idle for longer than this exit on their own.
+  private static final int MAX_IDLE_SECS = 10;
+  // Warm and pre-started servers must survive the time between two test methods, see
+  // reuseWarmServers() and preStartServers().
+  private static final int WARM_SERVER_MAX_IDLE_SECS = 600;
+  // Appended by the bazel_binary repository rule to the BUILD files of the install base.
+  private static final String RENAMED_BUILD_FILE_SUFFIX = ".install_base";
+
+  private static boolean reuseWarmServers = false;
+  private static Map<String, Path> warmWorkspaces = new HashMap<>();
+  // Servers living for the whole test class, and servers living for one test method.
+  private static BazelServers classServers = new BazelServers();
+  private static ServerPool serverPool = null;
+  // The number of servers requested by preStartServers(), 0 if there is no pool.
+  private static int serverPoolSize = 0;
+  private static WorkspaceSlots slots = null;
+  private static volatile DiskCache diskCache = null;
+  private static volatile WorkspaceTemplate template = null;
+  private final BazelServers testServers = new BazelServers();
+
+  /** The output user root of this driver, a slot of its own when tests run in parallel. */
+  private volatile Path outputUserRoot = null;
+  private Path slot = null;
+  private WorkspaceSlots slotOwner = null;
+
+  private boolean batchMode = false;
+
+  private volatile HttpRemoteCache remoteCache = null;
+  private volatile int profiledJobs = 0;
+  // The directory of the output spilled by the commands of this driver, deleted by tearDown().
+  private Path spillDirectory = null;
+
+  private volatile boolean skipUnchangedWrites = false;
+  // The files written since the last invocation in their workspace, see changedFiles().
+  private final Set<Path> changedFiles = ConcurrentHashMap.newKeySet();
+
+  private volatile Path currentBazel = null;
+  private volatile String currentBazelVersion = null;
 
   /** The current workspace. */
-  private Path workspace = null;
+  private volatile Path workspace = null;
+
+  /** The idle time after which the server of the current workspace exits. */
+  private volatile int maxIdleSecs = MAX_IDLE_SECS;
+
+  private static volatile RepositoryCache repositoryCache;
 
-  private static RepositoryCache repositoryCache;
+  private static volatile String javaToolchain;
+  private static volatile String javaHome;
 
-  private static String javaToolchain;
-  private static String javaHome;
+  private static volatile ProbeCache probeCache;
+  // The configuration the static state was set up for, see setUpClass().
+  private static volatile String configuredFor = null;
 
   /** Returns the current workspace path */
   public Path currentWorkspace() {
@@ -55,12 +116,31 @@ public class WorkspaceDriver {
   }
 
   public static void setUpClass() throws IOException {
-    loadProperties();
+    closeServerPool();
     setupTmp();
-    bazelVersions = new HashMap<>();
+    synchronized (WorkspaceDriver.class) {
+      serverPoolSize = 0;
+      reuseWarmServers = false;
+      warmWorkspaces = new HashMap<>();
+      classServers = new BazelServers();
+      slots = null;
+      diskCache = null;
+      template = null;
+    }
+    // The configuration does not change between the test classes run by the same JVM, the facts
+    // derived from it are only computed for the first one.
+    String configuration = System.getProperty("bazel.configuration") + " in " + tmp;
+    if (configuration.equals(configuredFor)) {
+      return;
+    }
+    loadProperties();
+    bazelVersions.clear();
+    installBases.clear();
+    probeCache = new ProbeCache(SharedStorage.root(tmp).resolve("probes.properties"));
     setupRepositoryCache();
     javaHome = javaHomeFromProperties();
     javaToolchain = javaToolchainFromProperties();
+    configuredFor = configuration;
   }
 
   /**
@@ -72,10 +152,19 @@ public class WorkspaceDriver {
   }
   private static void setupRepositoryCache() throws IOException {
     String externalDeps = properties.getProperty("bazel.external.deps");
-    repositoryCache = new RepositoryCache(tmp.resolve("cache"));
+    SharedContentStore store = sharedContentStore();
+    repositoryCache = new RepositoryCache(tmp.resolve("cache"), probeCache, store);
     if (externalDeps != null && !externalDeps.isEmpty()) {
-      for (String dep : externalDeps.split(",")) {
-        repositoryCache.put(Paths.get(dep));
+      repositoryCache.putAll(
+          Arrays.stream(externalDeps.split(",")).map(Paths::get).collect(Collectors.toList()));
+      System.err.println(
+          "Repository cache populated with strategy " + repositoryCache.populationStrategy());
+    }
+    if (store != null) {
+      try {
+        store.evict();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
     //freeze doesn't work on Windows
@@ -83,6 +172,25 @@ public class WorkspaceDriver {
       repositoryCache.freeze();
   }
 
+  /**
+   * Returns the machine-wide store of external dependencies, if enabled by setting its size cap in
+   * megabytes with the {@code bazel.integration.shared_repository_cache_max_mb} system property or
+   * the {@code BAZEL_INTEGRATION_SHARED_REPOSITORY_CACHE_MAX_MB} environment variable. It lives in
+   * the {@link SharedStorage} directory, which should then be configured too.
+   */
+  private static SharedContentStore sharedContentStore() throws IOException {
+    String maxMegabytes =
+        SharedStorage.setting(
+            "bazel.integration.shared_repository_cache_max_mb",
+            "BAZEL_INTEGRATION_SHARED_REPOSITORY_CACHE_MAX_MB");
+    if (maxMegabytes == null) {
+      return null;
+    }
+    return new SharedContentStore(
+        SharedStorage.root(tmp).resolve("repository_cache"),
+        Long.parseLong(maxMegabytes) * 1024 * 1024);
+  }
+
   private static void setupTmp() throws IOException {
     // We have to use a shorted output user root on Windows, otherwise we get
     // a "current working directory is too long" error,
@@ -98,6 +206,11 @@ public class WorkspaceDriver {
     }
   }
 
+  /** Returns the temporary directory of the test, set up by {@link #setUpClass()}. */
+  static Path temporaryDirectory() {
+    return tmp;
+  }
+
   private static void loadProperties() throws IOException {
     String configFile = System.getProperty("bazel.configuration");
     properties = new Properties();
@@ -111,7 +224,8 @@ public class WorkspaceDriver {
     return Paths.get(runfileDirectory.toString(), segments);
   }
 
-  private static void unpackBazel(String version) throws IOException, InterruptedException {
+  private static synchronized void unpackBazel(String version)
+      throws IOException, InterruptedException {
     if (!bazelVersions.containsKey(version)) {
       // Get bazel location
       String bazelName = "bazel" + (OS.getCurrent() == OS.WINDOWS ? ".exe" : "");
@@ -119,30 +233,167 @@ public class WorkspaceDriver {
       if (!Files.exists(bazelFile)) {
         throw new BazelWorkspaceDriverException("Bazel version " + version + " not found");
       }
+      installBases.put(bazelFile, extractInstallBase(bazelFile));
       bazelVersions.put(version, bazelFile);
+    }
+  }
 
-      // Unzip Bazel
-      prepareUnpackBazelCommand(version).run();
+  /**
+   * Returns the install base extracted by the {@code bazel_binary} repository rule next to {@code
+   * bazel} in the runfiles, if any.
+   */
+  private static Optional<Path> prebuiltInstallBase(Path bazel) {
+    Path installBase = bazel.resolveSibling("install_base");
+    if (!Files.exists(bazel.resolveSibling("install_base.complete"))
+        || !Files.isDirectory(installBase)) {
+      return Optional.empty();
     }
+    return Optional.of(installBase);
   }
 
-  private static Command prepareUnpackBazelCommand(String version) throws IOException {
+  /**
+   * Extracts {@code bazel} into an install base named after the sha256 digest of the binary, unless
+   * it was already extracted there, and returns it.
+   *
+   * <p>The install base extracted by the {@code bazel_binary} repository rule is copied rather than
+   * used in place: it is read-only in the runfiles of a sandboxed test, while the Bazel client
+   * updates the install base it starts from. Copying keeps the modification times, which the
+   * client checks to detect a corrupted install base, and is cheaper than extracting the binary.
+   *
+   * <p>The install bases live under the {@link SharedStorage} directory when one is configured, so
+   * that a version of Bazel is extracted once per machine instead of once per test target. A lock
+   * file serializes the extractions of the same binary by concurrent test processes, and a marker
+   * file written once the extraction succeeded tells the others that it can be used as is.
+   */
+  private static Path extractInstallBase(Path bazel) throws IOException, InterruptedException {
+    Path installRoot = SharedStorage.root(tmp).resolve("install");
+    String digest =
+        probeCache.get(ProbeCache.fileKey("sha256", bazel), () -> Digests.sha256(bazel));
+    Path installBase = installRoot.resolve(digest);
+    Path complete = installRoot.resolve(digest + ".complete");
+    Optional<Path> prebuilt = prebuiltInstallBase(bazel);
+    return SharedStorage.withLock(
+        installRoot.resolve(digest + ".lock"),
+        () -> {
+          if (Files.exists(complete)) {
+            return installBase;
+          }
+          if (prebuilt.isPresent()) {
+            copyInstallBase(prebuilt.get(), installBase);
+          } else {
+            Command unpack = prepareUnpackBazelCommand(bazel, installBase);
+            if (unpack.run() != 0) {
+              throw new BazelWorkspaceDriverException(
+                  "Could not extract "
+                      + bazel
+                      + " into "
+                      + installBase
+                      + ":\n"
+                      + String.join("\n", unpack.getErrorLines()));
+            }
+          }
+          Files.createFile(complete);
+          return installBase;
+        });
+  }
+
+  /**
+   * Copies the files of {@code prebuilt}, following the symbolic links of the runfiles, into {@code
+   * installBase} with their modification times and permissions. The repository rule renamed the
+   * BUILD files of the install base, so that they do not split it in packages, their original
+   * names are restored.
+   */
+  private static void copyInstallBase(Path prebuilt, Path installBase) throws IOException {
+    FileBatch batch = new FileBatch();
+    Files.walkFileTree(
+        prebuilt,
+        EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+        Integer.MAX_VALUE,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Files.createDirectories(installBase.resolve(prebuilt.relativize(dir).toString()));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            Path target = installBase.resolve(prebuilt.relativize(file).toString());
+            String name = target.getFileName().toString();
+            if (name.equals("BUILD" + RENAMED_BUILD_FILE_SUFFIX)
+                || name.equals("BUILD.bazel" + RENAMED_BUILD_FILE_SUFFIX)) {
+              target =
+                  target.resolveSibling(
+                      name.substring(0, name.length() - RENAMED_BUILD_FILE_SUFFIX.length()));
+            }
+            Path copy = target;
+            batch.add(
+                () ->
+                    Files.copy(
+                        file,
+                        copy,
+                        StandardCopyOption.COPY_ATTRIBUTES,
+                        StandardCopyOption.REPLACE_EXISTING));
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    batch.run();
+  }
+
+  private static Command prepareUnpackBazelCommand(Path bazel, Path installBase) {
     List<String> command =
         new ArrayList<String>(
             Arrays.asList(
-                bazelVersions.get(version).toString(),
+                bazel.toString(),
                 "--output_user_root=" + tmp,
+                "--install_base=" + installBase,
                 "--nomaster_bazelrc",
-                "--max_idle_secs=30",
+                // Extracting does not need a server, do not leave one behind.
+                "--batch",
                 "--bazelrc=/dev/null",
                 "help"));
     return Command.builder().setDirectory(tmp).addArguments(command).build();
   }
 
+  /**
+   * Returns the install base of {@code bazel}. It is set explicitly, instead of letting Bazel pick
+   * one under each output user root, so that it is only extracted once and then shared by all the
+   * output user roots (see {@link #runTestsInParallel(int)}) and test targets (see {@link
+   * SharedStorage}).
+   */
+  private static Path installBase(Path bazel) {
+    Path installBase = installBases.get(bazel);
+    if (installBase == null) {
+      throw new IllegalStateException(bazel + " was not extracted");
+    }
+    return installBase;
+  }
+
+  /**
+   * Returns the output base Bazel uses for {@code workspace} under {@code outputUserRoot}. Bazel
+   * names it after the md5 digest of the canonical path of the workspace.
+   */
+  static Path outputBase(Path outputUserRoot, Path workspace) throws IOException {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      byte[] digest =
+          md5.digest(workspace.toRealPath().toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return outputUserRoot.resolve(hex.toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   /** Specify with bazel version to use, required before calling bazel. */
   public void bazelVersion(String version) throws IOException, InterruptedException {
     unpackBazel(version);
     currentBazel = bazelVersions.get(version);
+    currentBazelVersion = version;
   }
 
   public Path bazelBinPath() {
@@ -152,18 +403,448 @@ public class WorkspaceDriver {
     return currentBazel;
   }
 
-  /** Create a new workspace, previous one can still be used. */
+  /**
+   * Create a new workspace, previous one can still be used. The new workspace is a clone of the
+   * template of {@link #freezeAsTemplate()} if any, and otherwise only has an empty WORKSPACE file.
+   */
   public void newWorkspace() throws IOException {
     this.workspace = Files.createTempDirectory(tmp, "workspace");
-    this.scratchFile("WORKSPACE");
+    this.maxIdleSecs = MAX_IDLE_SECS;
+    populateWorkspace();
+  }
+
+  private void populateWorkspace() throws IOException {
+    WorkspaceTemplate current = template;
+    if (current == null) {
+      this.scratchFile("WORKSPACE");
+    } else {
+      current.cloneInto(workspace);
+    }
+  }
+
+  /**
+   * Freezes the content of the current workspace as the template of the test class: the
+   * workspaces created from now on by {@link #setUp()} and {@link #newWorkspace()} start as a
+   * clone of it, instead of an empty workspace. To be called once the common layout of the tests
+   * was written, for instance by the first test or in a {@code BeforeClass} method, with a driver
+   * of its own.
+   *
+   * <p>The template is cloned with hard links when possible, so that preparing a workspace costs
+   * about one link per file. Its files are read-only: writing to one of them with {@link
+   * #scratchFile(String, String...)} replaces the link by a real file. Tools writing in place are
+   * denied the write, unless they run as root, instead of changing the files of the other tests.
+   * The current workspace is not changed.
+   * The template is discarded by {@link #tearDownClass()}.
+   */
+  public void freezeAsTemplate() throws IOException {
+    Path root = Files.createTempDirectory(tmp, "template");
+    template = WorkspaceTemplate.freeze(workspace, root.resolve("workspace"));
+  }
+
+  /** Lets the following workspaces start empty again, see {@link #freezeAsTemplate()}. */
+  public static void discardTemplate() {
+    template = null;
+  }
+
+  /**
+   * Shuts down the server of the current workspace and takes a snapshot of the workspace and of
+   * its output base, to be cloned by {@link #restore(WarmSnapshot)}. To be called after a warm-up
+   * build, typically once per class, so that each test of incremental behavior starts from the
+   * fetched, analyzed and built state instead of paying for it again.
+   */
+  public WarmSnapshot snapshot() throws IOException, InterruptedException {
+    Path bazel = bazelBinPath();
+    // The output base must not change while it is copied.
+    bazelWithoutJavaBaseConfig("shutdown").mustRunSuccessfully();
+    Path root = Files.createTempDirectory(tmp, "snapshot");
+    return WarmSnapshot.take(bazel, workspace, outputBase(outputUserRoot(), workspace), root);
+  }
+
+  /**
+   * Creates a new workspace as a clone of {@code snapshot}, with the output base Bazel uses for
+   * it, so that the next invocation starts a server on the warm state of the snapshot. The Bazel
+   * version must be the one of the snapshot.
+   */
+  public void restore(WarmSnapshot snapshot) throws IOException {
+    if (!snapshot.bazel().equals(currentBazel)) {
+      throw new IllegalStateException(
+          snapshot + " was taken with " + snapshot.bazel() + ", not " + currentBazel);
+    }
+    Path newWorkspace = Files.createTempDirectory(tmp, "workspace");
+    snapshot.restoreInto(newWorkspace, outputBase(outputUserRoot(), newWorkspace));
+    this.workspace = newWorkspace;
+    this.maxIdleSecs = MAX_IDLE_SECS;
   }
 
   public void setUp() throws IOException, InterruptedException {
+    WorkspaceSlots currentSlots;
+    synchronized (WorkspaceDriver.class) {
+      currentSlots = slots;
+    }
+    if (currentSlots != null && slot == null) {
+      slot = currentSlots.acquire();
+      slotOwner = currentSlots;
+      outputUserRoot = slot;
+    }
     this.currentBazel = null;
+    this.currentBazelVersion = null;
     if (properties.get("bazel.version") != null) {
       bazelVersion(properties.getProperty("bazel.version"));
     }
-    newWorkspace();
+    if (reuseWarmServers && currentBazel != null) {
+      warmWorkspace();
+    } else if (serverPool != null && currentBazel != null) {
+      pooledWorkspace();
+    } else {
+      newWorkspace();
+    }
+  }
+
+  /**
+   * Starts up to {@code poolSize} Bazel servers in fresh workspaces in the background, while the
+   * tests run. {@link #setUp()} then hands a workspace whose server is already up to each test,
+   * hiding the startup of the server JVM. To be called in a {@code BeforeClass} method, after
+   * {@link #setUpClass()}, and paired with {@link #tearDownClass()} which shuts down the servers
+   * that were not used.
+   *
+   * <p>A server only serves the tests using the output user root it was started under. When the
+   * tests run in parallel, see {@link #runTestsInParallel(int)}, the servers are spread over the
+   * slots, each slot getting at least one.
+   */
+  public static void preStartServers(int poolSize) throws IOException, InterruptedException {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("The pool size must be at least 1");
+    }
+    synchronized (WorkspaceDriver.class) {
+      serverPoolSize = poolSize;
+    }
+    startServerPool();
+  }
+
+  /** Replaces the server pool by one filled for the output user roots the tests will use. */
+  private static void startServerPool() throws IOException, InterruptedException {
+    closeServerPool();
+    List<Path> roots;
+    int poolSize;
+    synchronized (WorkspaceDriver.class) {
+      roots = slots != null ? slots.roots() : Collections.singletonList(tmp);
+      poolSize = serverPoolSize;
+    }
+    int perRoot = Math.max(1, (poolSize + roots.size() - 1) / roots.size());
+    ServerPool pool = new ServerPool(perRoot, tmp, classServers);
+    synchronized (WorkspaceDriver.class) {
+      serverPool = pool;
+    }
+    String version = properties.getProperty("bazel.version");
+    if (version != null) {
+      unpackBazel(version);
+      Path bazel = bazelVersions.get(version);
+      for (Path root : roots) {
+        pool.fill(bazel, root, startupOptions(root, bazel, WARM_SERVER_MAX_IDLE_SECS));
+      }
+    }
+  }
+
+  private static void closeServerPool() {
+    ServerPool pool;
+    synchronized (WorkspaceDriver.class) {
+      pool = serverPool;
+      serverPool = null;
+    }
+    if (pool != null) {
+      try {
+        pool.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void pooledWorkspace() throws IOException, InterruptedException {
+    ServerPool pool;
+    synchronized (WorkspaceDriver.class) {
+      pool = serverPool;
+    }
+    this.workspace =
+        pool.take(
+            currentBazel,
+            outputUserRoot(),
+            startupOptions(outputUserRoot(), currentBazel, WARM_SERVER_MAX_IDLE_SECS));
+    this.maxIdleSecs = WARM_SERVER_MAX_IDLE_SECS;
+    populateWorkspace();
+  }
+
+  /**
+   * Keeps one Bazel server alive for the whole test class per Bazel version and set of startup
+   * options, instead of starting a new one for each test method. To be called in a {@code
+   * BeforeClass} method, after {@link #setUpClass()}, and paired with {@link #tearDownClass()}.
+   *
+   * <p>{@link #setUp()} then reuses the same workspace directory, and thus the same output base
+   * and server, for all the test methods: the content of the workspace is deleted and Bazel picks
+   * the new content up when it checks the files for changes on the next invocation. The outputs of
+   * the previous tests are kept in the output base, so tests must not rely on actions being
+   * executed from scratch. {@link #newWorkspace()} still creates a new workspace with its own
+   * server.
+   */
+  public static synchronized void reuseWarmServers() {
+    reuseWarmServers = true;
+  }
+
+  /**
+   * Shuts down the servers kept alive for the whole class, such as the ones of {@link
+   * #reuseWarmServers()}.
+   */
+  public static void tearDownClass() throws IOException, InterruptedException {
+    closeServerPool();
+    BazelServers servers;
+    synchronized (WorkspaceDriver.class) {
+      serverPoolSize = 0;
+      servers = classServers;
+      warmWorkspaces.clear();
+      template = null;
+    }
+    servers.shutdownAll();
+    DiskCache cache = diskCache;
+    if (cache != null) {
+      cache.trim();
+    }
+  }
+
+  /**
+   * Shuts down the servers started by this driver in the workspaces of the current test method,
+   * instead of letting them idle until they exit on their own.
+   */
+  public void tearDown() throws IOException, InterruptedException {
+    try {
+      testServers.shutdownAll();
+      HttpRemoteCache remote = remoteCache;
+      if (remote != null) {
+        remote.close();
+        remoteCache = null;
+      }
+      DiskCache cache = diskCache;
+      // Concurrent tests may be writing to the cache, it is then trimmed with the class.
+      if (cache != null && slot == null) {
+        cache.trim();
+      }
+      deleteSpillDirectory();
+    } finally {
+      if (slot != null) {
+        slotOwner.release(slot);
+        slot = null;
+        slotOwner = null;
+        outputUserRoot = null;
+      }
+    }
+  }
+
+  /**
+   * Lets up to {@code parallelism} test methods of the class run concurrently, each driver getting
+   * its own output user root from a pool of slots in {@link #setUp()} and giving it back in {@link
+   * #tearDown()}. Bazel is extracted once in an install base shared by all the slots. To be called
+   * after {@link #setUpClass()}; {@link ParallelBazelRunner} does it and runs the test methods on a
+   * thread pool.
+   */
+  public static void runTestsInParallel(int parallelism)
+      throws IOException, InterruptedException {
+    WorkspaceSlots newSlots = new WorkspaceSlots(tmp.resolve("slots"), parallelism);
+    boolean pooled;
+    synchronized (WorkspaceDriver.class) {
+      slots = newSlots;
+      pooled = serverPoolSize > 0;
+    }
+    if (pooled) {
+      // The servers pre-started under the shared output user root would never be taken.
+      startServerPool();
+    }
+  }
+
+  /**
+   * Adds a {@code --disk_cache} to the build commands of all the workspaces of the test target, so
+   * that the actions already executed in a previous workspace, such as the compilation of a
+   * toolchain, are cache hits. The least recently used entries are deleted between tests to keep
+   * the cache under {@code maxBytes}. To be called in a {@code BeforeClass} method, after {@link
+   * #setUpClass()}. See {@link BazelCommand#processSummary()} for the cache hits of an invocation.
+   */
+  public static void useDiskCache(long maxBytes) throws IOException {
+    DiskCache cache = new DiskCache(tmp.resolve("disk_cache"), maxBytes);
+    cache.trim();
+    diskCache = cache;
+  }
+
+  /**
+   * Starts an {@link HttpRemoteCache} on localhost, keeping up to {@code maxBytes} of entries in
+   * memory, and passes it as {@code --remote_cache}, or {@code --remote_http_cache} before Bazel
+   * 0.24.0, to the build commands of this driver, in all its workspaces, until the end of the test.
+   * The statistics of the returned cache tell which actions were reused across workspaces.
+   */
+  public HttpRemoteCache startRemoteCache(long maxBytes) throws IOException {
+    HttpRemoteCache previous = remoteCache;
+    if (previous != null) {
+      previous.close();
+    }
+    HttpRemoteCache cache = HttpRemoteCache.start(maxBytes);
+    remoteCache = cache;
+    return cache;
+  }
+
+  /**
+   * Runs the following builds of this driver with at most {@code jobs} actions at once ({@code
+   * --jobs}) and writes a trace profile for each of them, read back with {@link
+   * BazelCommand#executionProfile()} to check the queue time, execution time and concurrency of
+   * the actions. {@code 0} goes back to the default execution, without a profile.
+   *
+   * <p>The actions still run locally with the default strategy: this measures how rules
+   * parallelize, it does not check that they are compatible with remote execution.
+   */
+  public void profileActions(int jobs) {
+    if (jobs < 0) {
+      throw new IllegalArgumentException("The number of jobs must not be negative");
+    }
+    this.profiledJobs = jobs;
+  }
+
+  /** The options to run a build profiled by {@link #profileActions}, or an empty list. */
+  List<String> profileOptions(Path profile) {
+    int jobs = profiledJobs;
+    if (jobs == 0) {
+      return Collections.emptyList();
+    }
+    List<String> options = new ArrayList<>();
+    options.add("--jobs=" + jobs);
+    options.add("--experimental_generate_json_trace_profile");
+    options.add("--profile=" + profile);
+    return options;
+  }
+
+  /**
+   * The options added to the commands which build, such as the ones of {@link #useDiskCache} and
+   * {@link #startRemoteCache}.
+   */
+  List<String> buildOptions() {
+    List<String> options = new ArrayList<>();
+    DiskCache disk = diskCache;
+    if (disk != null) {
+      options.addAll(disk.bazelOptions());
+    }
+    HttpRemoteCache remote = remoteCache;
+    if (remote != null) {
+      options.addAll(remote.bazelOptions(currentBazelVersion));
+    }
+    return options;
+  }
+
+  /** Returns the output user root of the invocations of this driver. */
+  Path outputUserRoot() {
+    Path root = outputUserRoot;
+    return root != null ? root : tmp;
+  }
+
+  /**
+   * Runs all the following invocations of this driver with the {@code --batch} startup option, so
+   * that no server is left behind. Best suited to one-shot invocations: each invocation then pays
+   * the startup of the Bazel JVM. See also {@link BazelCommand.Builder#inBatchMode(boolean)}.
+   */
+  public void useBatchMode(boolean batchMode) {
+    this.batchMode = batchMode;
+  }
+
+  /** Whether invocations run with {@code --batch} unless specified otherwise. */
+  boolean batchMode() {
+    return batchMode;
+  }
+
+  /**
+   * Records that a server may be started in {@code workspace}, to be shut down at the end of the
+   * test method, or of the test class for a warm workspace.
+   */
+  void trackServer(Path bazel, List<String> startupOptions, Path workspace) throws IOException {
+    BazelServers servers;
+    synchronized (WorkspaceDriver.class) {
+      servers = warmWorkspaces.containsValue(workspace) ? classServers : testServers;
+    }
+    servers.track(bazel, startupOptions, outputUserRoot(), workspace);
+  }
+
+  private void warmWorkspace() throws IOException {
+    this.maxIdleSecs = WARM_SERVER_MAX_IDLE_SECS;
+    List<String> startupOptions = startupOptions();
+    String key = currentBazel + " " + String.join(" ", startupOptions);
+    Path warm;
+    synchronized (WorkspaceDriver.class) {
+      warm = warmWorkspaces.get(key);
+      if (warm == null) {
+        warm = Files.createTempDirectory(tmp, "warm-workspace");
+        warmWorkspaces.put(key, warm);
+      } else {
+        clearDirectory(warm);
+      }
+    }
+    this.workspace = warm;
+    populateWorkspace();
+  }
+
+  /**
+   * Returns the directory in which the commands of this driver spill their output, see {@link
+   * BazelCommand.Builder#withOutputSpilledAfter}. It is owned by the driver so that {@link
+   * #tearDown()} deletes the spill files of the test without touching the ones of concurrent tests.
+   */
+  synchronized Path spillDirectory() throws IOException {
+    if (spillDirectory == null) {
+      spillDirectory =
+          Files.createTempDirectory(Files.createDirectories(tmp.resolve("outputs")), "driver");
+    }
+    return spillDirectory;
+  }
+
+  private synchronized void deleteSpillDirectory() throws IOException {
+    if (spillDirectory != null) {
+      clearDirectory(spillDirectory);
+      Files.delete(spillDirectory);
+      spillDirectory = null;
+    }
+  }
+
+  /** Deletes the content of {@code directory}, without following symbolic links. */
+  private static void clearDirectory(Path directory) throws IOException {
+    Files.walkFileTree(
+        directory,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+              throws IOException {
+            if (exc != null) {
+              throw exc;
+            }
+            if (!dir.equals(directory)) {
+              Files.delete(dir);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /** The startup options passed to every Bazel invocation in the current workspace. */
+  List<String> startupOptions() {
+    return startupOptions(outputUserRoot(), currentBazel, maxIdleSecs);
+  }
+
+  private static List<String> startupOptions(Path outputUserRoot, Path bazel, int maxIdleSecs) {
+    List<String> options = new ArrayList<>();
+    options.add("--output_user_root=" + outputUserRoot);
+    if (bazel != null) {
+      options.add("--install_base=" + installBase(bazel));
+    }
+    options.add("--nomaster_bazelrc");
+    options.add("--max_idle_secs=" + maxIdleSecs);
+    return Collections.unmodifiableList(options);
   }
 
   /**
@@ -174,6 +855,7 @@ public class WorkspaceDriver {
     Path origin = runfile(path);
     Path dest = createParentDirectoryIfNotExists(destpath);
     Files.copy(origin, dest);
+    changedFiles.add(dest);
   }
 
   private Path createParentDirectoryIfNotExists(String destpath) throws IOException {
@@ -183,12 +865,35 @@ public class WorkspaceDriver {
     return dest;
   }
 
+  /** How {@link #copyDirectoryFromRunfiles(String, String, CopyMode)} puts the files in place. */
+  public enum CopyMode {
+    /** Each file is copied. */
+    COPY,
+    /**
+     * Each file is a symbolic link to the runfile, or a copy when symbolic links are not
+     * supported. Writing to such a file with {@link #scratchFile(String, String...)} replaces the
+     * link by a real file, the runfiles are never written to. Tools writing in place must not be
+     * used on these files.
+     */
+    LINK
+  }
+
   /**
    * Copy the whole directory from the runfiles under {@code directoryToCopy} to the current
    * workspace.
    */
   public void copyDirectoryFromRunfiles(final String directoryToCopy, final String stripPrefix)
       throws IOException {
+    copyDirectoryFromRunfiles(directoryToCopy, stripPrefix, CopyMode.COPY);
+  }
+
+  /**
+   * Copy the whole directory from the runfiles under {@code directoryToCopy} to the current
+   * workspace, removing {@code stripPrefix} from the paths. The files are put in place in parallel
+   * with {@code mode}, {@link CopyMode#LINK} costing a single link per file.
+   */
+  public void copyDirectoryFromRunfiles(
+      final String directoryToCopy, final String stripPrefix, CopyMode mode) throws IOException {
     Path startingDirectory = runfile(directoryToCopy);
 
     if (!Files.isDirectory(startingDirectory))
@@ -202,20 +907,46 @@ public class WorkspaceDriver {
     // but it returns foo/bar on Linux.
     // Adding ./ as a prefix to all path to make sure relativize returns correct result.
     Path stripPrefixPath = Paths.get("./" + stripPrefix);
+    FileBatch batch = new FileBatch();
     try (Stream<Path> paths = Files.walk(startingDirectory)) {
       paths
           .filter(path -> Files.isRegularFile(path))
           .forEach(
               runfilePath -> {
                 Path relativeToRunfilesPath = runfileDirectory.relativize(runfilePath);
-                Path destinationPath = stripPrefixPath.relativize(Paths.get("./").resolve(relativeToRunfilesPath));
-                try {
-                  copyFromRunfiles(relativeToRunfilesPath.toString(), destinationPath.toString());
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
-                }
+                Path destinationPath =
+                    stripPrefixPath.relativize(Paths.get("./").resolve(relativeToRunfilesPath));
+                Path dest = workspace.resolve(destinationPath.toString());
+                batch.add(
+                    () -> {
+                      batch.parentOf(dest);
+                      changedFiles.add(dest);
+                      if (mode == CopyMode.LINK && tryLinkToRunfile(dest, runfilePath)) {
+                        return;
+                      }
+                      Files.copy(runfilePath, dest);
+                    });
               });
     }
+    batch.run();
+  }
+
+  private static boolean tryLinkToRunfile(Path dest, Path runfilePath) throws IOException {
+    try {
+      Files.createSymbolicLink(dest, runfilePath.toAbsolutePath());
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      throw e;
+    } catch (IOException | UnsupportedOperationException e) {
+      // Symbolic links need a privilege on Windows, copy instead.
+      return false;
+    }
+  }
+
+  /** Whether {@code file} is a symbolic link made by {@link CopyMode#LINK}. */
+  private static boolean isLinkToRunfile(Path file) throws IOException {
+    return Files.isSymbolicLink(file)
+        && Files.readSymbolicLink(file).startsWith(runfileDirectory.toAbsolutePath());
   }
 
   /**
@@ -234,7 +965,7 @@ public class WorkspaceDriver {
   }
 
   public void scratchFile(String path, Iterable<String> content) throws IOException {
-    writeToFile(path, content);
+    writeToFile(path, content, false);
   }
 
   public void scratchExecutableFile(String path, String... content) throws IOException {
@@ -242,14 +973,120 @@ public class WorkspaceDriver {
   }
 
   public void scratchExecutableFile(String path, Iterable<String> content) throws IOException {
-    Path dest = writeToFile(path, content);
-    dest.toFile().setExecutable(true, false);
+    writeToFile(path, content, true);
+  }
+
+  /**
+   * Writes all the {@code files} in the current workspace, creating each directory once and
+   * writing the files in parallel. Same as calling {@link #scratchFile(String, Iterable)} and
+   * {@link #scratchExecutableFile(String, Iterable)} for each file, only faster for many files.
+   */
+  public void scratchFiles(WorkspaceFiles files) throws IOException {
+    Path root = workspace;
+    FileBatch batch = new FileBatch();
+    files
+        .contents()
+        .forEach(
+            (path, content) ->
+                batch.add(
+                    () -> {
+                      Path dest = root.resolve(path);
+                      batch.parentOf(dest);
+                      write(dest, content.bytes, content.executable);
+                    }));
+    batch.run();
+  }
+
+  /**
+   * Same as {@link #scratchFiles(WorkspaceFiles)} for files mapping each path relative to the
+   * workspace to its lines.
+   */
+  public void scratchFiles(Map<String, ? extends Iterable<String>> files) throws IOException {
+    scratchFiles(WorkspaceFiles.of(files));
   }
 
-  private Path writeToFile(String path, Iterable<String> content) throws IOException {
+  private void writeToFile(String path, Iterable<String> content, boolean executable)
+      throws IOException {
     Path dest = createParentDirectoryIfNotExists(path);
-    Files.write(dest, String.join("\n", content).getBytes(StandardCharsets.UTF_8));
-    return dest;
+    write(dest, String.join("\n", content).getBytes(StandardCharsets.UTF_8), executable);
+  }
+
+  /**
+   * Makes the following writes of {@link #scratchFile(String, String...)} and {@link
+   * #scratchFiles(WorkspaceFiles)} leave a file alone when it already has the content to write,
+   * compared by size and then by digest, and is executable if it has to be. Its modification time
+   * is then kept, and Bazel does not digest it again nor invalidate what depends on it, which keeps
+   * the timing of incremental builds steady. See also {@link #changedFiles()}.
+   */
+  public void skipUnchangedWrites(boolean skipUnchangedWrites) {
+    this.skipUnchangedWrites = skipUnchangedWrites;
+  }
+
+  /**
+   * Returns the files of the current workspace, relative to it, created or written since the last
+   * Bazel invocation in the workspace; with {@link #skipUnchangedWrites(boolean)}, the files whose
+   * content actually changed. {@link BazelCommand#changedFiles()} tells the files an invocation
+   * saw changed.
+   */
+  public Set<Path> changedFiles() {
+    return relativeChangedFiles(workspace, false);
+  }
+
+  /** Returns the files of {@link #changedFiles()} in {@code root} and forgets them. */
+  Set<Path> takeChangedFiles(Path root) {
+    return relativeChangedFiles(root, true);
+  }
+
+  private Set<Path> relativeChangedFiles(Path root, boolean remove) {
+    Set<Path> relative = new TreeSet<>();
+    for (Path file : changedFiles) {
+      if (file.startsWith(root) && (!remove || changedFiles.remove(file))) {
+        relative.add(root.relativize(file));
+      }
+    }
+    return Collections.unmodifiableSet(relative);
+  }
+
+  /**
+   * Writes {@code content} to {@code dest}, and makes it executable by everyone if {@code
+   * executable}. The mode is only changed on a file just written: a skipped file may be a hard link
+   * to the workspace template, whose mode is shared with the template and the other clones.
+   */
+  private void write(Path dest, byte[] content, boolean executable) throws IOException {
+    if (skipUnchangedWrites
+        && hasContent(dest, content)
+        && (!executable || isExecutableByAll(dest))) {
+      return;
+    }
+    changedFiles.add(dest);
+    // A read-only file may be linked to the workspace template, and a link to a runfile must not
+    // change the runfile: they are replaced rather than written through.
+    if (WorkspaceTemplate.isFrozen(dest) || isLinkToRunfile(dest)) {
+      Files.delete(dest);
+    }
+    Files.write(dest, content);
+    if (executable) {
+      dest.toFile().setExecutable(true, false);
+    }
+  }
+
+  private static boolean isExecutableByAll(Path file) throws IOException {
+    if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return Files.getPosixFilePermissions(file)
+          .containsAll(
+              EnumSet.of(
+                  PosixFilePermission.OWNER_EXECUTE,
+                  PosixFilePermission.GROUP_EXECUTE,
+                  PosixFilePermission.OTHERS_EXECUTE));
+    }
+    return Files.isExecutable(file);
+  }
+
+  /** Whether {@code file} is a regular file, not a link to a runfile, holding {@code content}. */
+  private static boolean hasContent(Path file, byte[] content) throws IOException {
+    return Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)
+        && Files.size(file) == content.length
+        && Digests.sha256(file).equals(Digests.sha256(content));
   }
 
   private static Command prepareCommand(Path folder, Iterable<String> command) {
@@ -257,8 +1094,12 @@ public class WorkspaceDriver {
   }
 
   public List<Path> workspaceDirectoryContents() {
+    return directoryContents(workspace);
+  }
+
+  static List<Path> directoryContents(Path directory) {
     try {
-      try (Stream<Path> files = Files.walk(workspace)) {
+      try (Stream<Path> files = Files.walk(directory)) {
         return files.collect(Collectors.toList());
       }
     } catch (IOException e) {
@@ -308,7 +1149,7 @@ public class WorkspaceDriver {
   }
 
   private BazelCommand.Builder bazel(List<String> args, boolean addJavaBaseConfigFlags) {
-    return new BazelCommand.Builder(this, tmp, repositoryCache,
+    return new BazelCommand.Builder(this, outputUserRoot(), startupOptions(), repositoryCache,
         concat(args, maybeJavaBaseConfigFlags(addJavaBaseConfigFlags)));
   }
 
@@ -326,8 +1167,18 @@ public class WorkspaceDriver {
         Collections.emptyList();
   }
 
-  private static String javaToolchainFromProperties() {
-    return javaToolchainFromJavaHome(javaHome);
+  private static String javaToolchainFromProperties() throws IOException {
+    Path home = Paths.get(javaHome);
+    if (!Files.exists(home)) {
+      return javaToolchainFromJavaHome(javaHome);
+    }
+    try {
+      return probeCache.get(
+          ProbeCache.fileKey("java_toolchain", home), () -> javaToolchainFromJavaHome(javaHome));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return javaToolchainFromJavaHome(javaHome);
+    }
   }
 
   private static String javaHomeFromProperties() {
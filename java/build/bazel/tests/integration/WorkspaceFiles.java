@@ -0,0 +1,111 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The content of many files of a workspace, written in one operation by {@link
+ * WorkspaceDriver#scratchFiles(WorkspaceFiles)}: the directories are created once and the files
+ * are written in parallel. Generated fixtures of thousands of packages are set up this way:
+ *
+ * <pre>{@code
+ * WorkspaceFiles.Builder files = WorkspaceFiles.builder();
+ * for (int i = 0; i < 1000; i++) {
+ *   files.file("pkg" + i + "/BUILD", "filegroup(name = 'files', srcs = glob(['*.txt']))");
+ *   files.file("pkg" + i + "/file.txt", "content " + i);
+ * }
+ * driver.scratchFiles(files.build());
+ * }</pre>
+ */
+public final class WorkspaceFiles {
+
+  /** The content of one file, and whether it is executable. */
+  static final class Content {
+    final byte[] bytes;
+    final boolean executable;
+
+    private Content(Iterable<String> lines, boolean executable) {
+      this.bytes = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+      this.executable = executable;
+    }
+  }
+
+  private final Map<String, Content> files;
+
+  private WorkspaceFiles(Map<String, Content> files) {
+    this.files = files;
+  }
+
+  /** Returns a {@link Builder} to create a {@link WorkspaceFiles} object. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the files mapping each path relative to the workspace to its lines. */
+  public static WorkspaceFiles of(Map<String, ? extends Iterable<String>> files) {
+    Builder builder = builder();
+    files.forEach(builder::file);
+    return builder.build();
+  }
+
+  /** Returns the number of files. */
+  public int size() {
+    return files.size();
+  }
+
+  /** The content of each file, by path relative to the workspace. */
+  Map<String, Content> contents() {
+    return files;
+  }
+
+  /** A builder class to generate a {@link WorkspaceFiles} object. */
+  public static final class Builder {
+    private final Map<String, Content> files = new LinkedHashMap<>();
+
+    private Builder() {}
+
+    /** Adds a file filled with the lines given in {@code content}, replacing any previous one. */
+    public Builder file(String path, String... content) {
+      return file(path, Arrays.asList(content));
+    }
+
+    /** Adds a file filled with the lines given in {@code content}, replacing any previous one. */
+    public Builder file(String path, Iterable<String> content) {
+      files.put(path, new Content(content, false));
+      return this;
+    }
+
+    /** Same as {@link #file(String, String...)} for an executable file. */
+    public Builder executableFile(String path, String... content) {
+      return executableFile(path, Arrays.asList(content));
+    }
+
+    /** Same as {@link #file(String, Iterable)} for an executable file. */
+    public Builder executableFile(String path, Iterable<String> content) {
+      files.put(path, new Content(content, true));
+      return this;
+    }
+
+    /** Build a {@link WorkspaceFiles} object. */
+    public WorkspaceFiles build() {
+      return new WorkspaceFiles(Collections.unmodifiableMap(new LinkedHashMap<>(files)));
+    }
+  }
+}
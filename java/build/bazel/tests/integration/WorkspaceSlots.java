@@ -0,0 +1,70 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of isolated directories handed out to the tests running concurrently. Each slot is
+ * used as the output user root of the Bazel invocations of one test and holds its workspaces, so
+ * that concurrent tests never share a server, an output base or a lock.
+ */
+final class WorkspaceSlots {
+
+  private final BlockingQueue<Path> free;
+  private final List<Path> roots;
+  private final int size;
+
+  WorkspaceSlots(Path root, int size) throws IOException {
+    if (size < 1) {
+      throw new IllegalArgumentException("There must be at least one slot");
+    }
+    this.size = size;
+    this.free = new ArrayBlockingQueue<>(size);
+    List<Path> created = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      created.add(Files.createDirectories(root.resolve("slot-" + i)));
+    }
+    this.roots = Collections.unmodifiableList(created);
+    free.addAll(roots);
+  }
+
+  /** Returns the number of slots, that is the maximum number of tests running concurrently. */
+  int size() {
+    return size;
+  }
+
+  /** Returns all the slots, free or in use. */
+  List<Path> roots() {
+    return roots;
+  }
+
+  /** Returns a free slot, waiting for one to be released if all are in use. */
+  Path acquire() throws InterruptedException {
+    return free.take();
+  }
+
+  /** Makes {@code slot}, returned by {@link #acquire()}, available to other tests. */
+  void release(Path slot) {
+    free.add(slot);
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+
+/**
+ * A frozen copy of a workspace, cloned into the new workspaces of a test class instead of building
+ * the same layout again in each test.
+ *
+ * <p>The files of the template are read-only and cloned as hard links when the file system allows
+ * it, so that cloning costs one link per file whatever their size. A file is never written through
+ * such a link: {@link WorkspaceDriver} replaces a read-only file by a new one when a test writes
+ * to it, and tools writing in place get a permission error, unless they run as root, instead of
+ * changing the template for the other tests.
+ */
+final class WorkspaceTemplate {
+
+  private final Path root;
+  private final FileCloner cloner = new FileCloner(CloneStrategy.HARDLINK);
+
+  private WorkspaceTemplate(Path root) {
+    this.root = root;
+  }
+
+  /**
+   * Copies {@code workspace} into {@code root}, which must not exist, and makes the copy read-only.
+   * The convenience symbolic links of Bazel at the top of the workspace are left out since they
+   * point into the output base of {@code workspace}.
+   */
+  static WorkspaceTemplate freeze(Path workspace, Path root) throws IOException {
+    // The workspace stays writable for the current test, so it must not share files with the
+    // template.
+    copyTree(workspace, root, new FileCloner(CloneStrategy.COPY));
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (attrs.isRegularFile()) {
+              file.toFile().setWritable(false, false);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    return new WorkspaceTemplate(root);
+  }
+
+  /**
+   * Returns true if {@code file} is a read-only regular file, as the frozen files are. The
+   * permission bits are checked rather than the access of the current user, since root is allowed
+   * to write to any file.
+   */
+  static boolean isFrozen(Path file) throws IOException {
+    if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+      return false;
+    }
+    if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return !Files.getPosixFilePermissions(file).contains(PosixFilePermission.OWNER_WRITE);
+    }
+    return !Files.isWritable(file);
+  }
+
+  /** Returns the directory holding the frozen files. */
+  Path root() {
+    return root;
+  }
+
+  /** Clones the template into {@code workspace}, whose files of the same name are replaced. */
+  CloneStrategy cloneInto(Path workspace) throws IOException {
+    copyTree(root, workspace, cloner);
+    return cloner.strategy();
+  }
+
+  private static void copyTree(Path from, Path to, FileCloner cloner) throws IOException {
+    Files.walkFileTree(
+        from,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path relative = from.relativize(file);
+            if (attrs.isSymbolicLink()
+                && relative.getNameCount() == 1
+                && relative.toString().startsWith("bazel-")) {
+              return FileVisitResult.CONTINUE;
+            }
+            Path target = to.resolve(relative.toString());
+            Files.deleteIfExists(target);
+            if (attrs.isSymbolicLink()) {
+              Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+            } else {
+              cloner.clone(file, target);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests {@link WorkspaceDriver#profileActions(int)} and {@link ExecutionProfile}. */
+public class ActionProfileTest extends BazelBaseTestCase {
+
+  @Test
+  public void testActionsRunConcurrentlyUpToTheJobs() throws Exception {
+    List<String> build = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      build.add(
+          "genrule(name = 'sleep" + i + "', outs = ['sleep" + i + ".txt'],"
+              + " cmd = 'sleep 1 && echo " + i + " > $@')");
+    }
+    driver.scratchFile("BUILD", build);
+    driver.profileActions(2);
+
+    BazelCommand cmd =
+        driver.bazelWithoutJavaBaseConfig("build", "//:all").mustRunSuccessfully();
+
+    ExecutionProfile profile = cmd.executionProfile();
+    assertEquals(profile.toString(), 4, profile.actions());
+    assertTrue(profile.toString(), profile.maxConcurrency() <= 2);
+    assertTrue(profile.toString(), profile.executionTime().getSeconds() >= 4);
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Tests that {@link WorkspaceDriver#useDiskCache(long)} shares actions across workspaces. */
+public class DiskCacheTest extends BazelBaseTestCase {
+
+  @BeforeClass
+  public static void useDiskCache() throws Exception {
+    WorkspaceDriver.useDiskCache(64 * 1024 * 1024);
+  }
+
+  @Test
+  public void testActionsOfAPreviousWorkspaceAreCacheHits() throws Exception {
+    writeGenrule();
+    BazelCommand first = driver.bazelWithoutJavaBaseConfig("build", "//:out").mustRunSuccessfully();
+    assertEquals(first.toString(), 0, first.cacheHits());
+
+    driver.newWorkspace();
+    writeGenrule();
+    BazelCommand second =
+        driver.bazelWithoutJavaBaseConfig("build", "//:out").mustRunSuccessfully();
+    assertTrue(second.toString(), second.cacheHits() > 0);
+    assertEquals(second.toString(), 0, second.cacheMisses());
+  }
+
+  private void writeGenrule() throws Exception {
+    driver.scratchFile(
+        "BUILD", "genrule(name = 'out', outs = ['out.txt'], cmd = 'echo cached > $@')");
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Runs the same scenario in several test methods at once with {@link ParallelBazelRunner}. */
+@RunWith(ParallelBazelRunner.class)
+@ParallelBazelRunner.Parallelism(2)
+public class ParallelBazelRunnerTest extends BazelBaseTestCase {
+
+  private static final Set<Path> slotsInUse =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+  @Test
+  public void testFirst() throws Exception {
+    queryInOwnSlot("first");
+  }
+
+  @Test
+  public void testSecond() throws Exception {
+    queryInOwnSlot("second");
+  }
+
+  @Test
+  public void testThird() throws Exception {
+    queryInOwnSlot("third");
+  }
+
+  private void queryInOwnSlot(String name) throws Exception {
+    Path slot = driver.outputUserRoot();
+    assertTrue("no other running test should use " + slot, slotsInUse.add(slot));
+    try {
+      driver.scratchFile("BUILD.bazel", "sh_test(name = '" + name + "', srcs = ['test.sh'])");
+      BazelCommand cmd = driver.bazelWithoutJavaBaseConfig("query", "//...").mustRunSuccessfully();
+      assertEquals(Collections.singletonList("//:" + name), cmd.outputLines());
+    } finally {
+      slotsInUse.remove(slot);
+    }
+  }
+}
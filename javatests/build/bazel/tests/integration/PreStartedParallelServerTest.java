@@ -0,0 +1,57 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that {@link WorkspaceDriver#preStartServers(int)} hands out workspaces with a server to
+ * the tests run in parallel, whose output user roots are the slots.
+ */
+@RunWith(ParallelBazelRunner.class)
+@ParallelBazelRunner.Parallelism(2)
+public class PreStartedParallelServerTest extends BazelBaseTestCase {
+
+  @BeforeClass
+  public static void preStartServers() throws Exception {
+    WorkspaceDriver.preStartServers(2);
+  }
+
+  @Test
+  public void testFirstWorkspaceHasARunningServer() throws Exception {
+    checkServerIsRunningBeforeTheFirstInvocation();
+  }
+
+  @Test
+  public void testSecondWorkspaceHasARunningServer() throws Exception {
+    checkServerIsRunningBeforeTheFirstInvocation();
+  }
+
+  private void checkServerIsRunningBeforeTheFirstInvocation() throws Exception {
+    Path pidFile =
+        WorkspaceDriver.outputBase(driver.outputUserRoot(), driver.currentWorkspace())
+            .resolve("server")
+            .resolve("server.pid.txt");
+    assertTrue("the server should already be running in the slot", Files.exists(pidFile));
+    driver.scratchFile("BUILD.bazel", "sh_test(name = 'foo', srcs = ['foo.sh'])");
+    driver.bazelWithoutJavaBaseConfig("query", "//:foo").mustRunSuccessfully();
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+
+/** Tests {@link HttpRemoteCache} and {@link WorkspaceDriver#startRemoteCache(long)}. */
+public class RemoteCacheTest extends BazelBaseTestCase {
+
+  @Test
+  public void testActionsOfAPreviousWorkspaceAreRemoteCacheHits() throws Exception {
+    HttpRemoteCache cache = driver.startRemoteCache(64 * 1024 * 1024);
+    writeGenrule();
+    driver.bazelWithoutJavaBaseConfig("build", "//:out").mustRunSuccessfully();
+    assertTrue("the outputs should be uploaded", cache.bytesUploaded() > 0);
+
+    driver.newWorkspace();
+    writeGenrule();
+    long hitsBefore = cache.hits();
+    BazelCommand cmd = driver.bazelWithoutJavaBaseConfig("build", "//:out").mustRunSuccessfully();
+    assertTrue(
+        cmd.processSummary().toString(), cmd.processSummary().count("remote cache hit") > 0);
+    assertTrue(cache.entryStats().toString(), cache.hits() > hitsBefore);
+  }
+
+  @Test
+  public void testTheCacheFlagDependsOnTheBazelVersion() throws Exception {
+    try (HttpRemoteCache cache = HttpRemoteCache.start(10)) {
+      assertEquals("--remote_http_cache=" + cache.url(), cache.bazelOptions("0.23.2").get(0));
+      assertEquals("--remote_cache=" + cache.url(), cache.bazelOptions("0.24.0").get(0));
+      assertEquals("--remote_cache=" + cache.url(), cache.bazelOptions("1.0.0").get(0));
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    try (HttpRemoteCache cache = HttpRemoteCache.start(10)) {
+      assertEquals(200, request(cache, "PUT", "/cas/aaaa", "hello"));
+      assertEquals(200, request(cache, "GET", "/cas/aaaa", null));
+      assertEquals(200, request(cache, "PUT", "/ac/bbbb", "world!"));
+      assertEquals(404, request(cache, "GET", "/cas/aaaa", null));
+
+      assertEquals(1, cache.entryStats().get("cas/aaaa").hits());
+      assertEquals(1, cache.entryStats().get("cas/aaaa").misses());
+      assertEquals(6, cache.size());
+    }
+  }
+
+  @Test
+  public void testEntriesStoredInADirectoryAreServedFromTheBoundAddress() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "remote");
+    try (HttpRemoteCache cache = HttpRemoteCache.start(1024, directory)) {
+      String host = new URL(cache.url()).getHost();
+      assertTrue(cache.url(), InetAddress.getByName(host).isLoopbackAddress());
+      assertEquals(200, request(cache, "PUT", "/cas/aaaa", "hello"));
+      assertEquals(200, request(cache, "GET", "/cas/aaaa", null));
+      assertEquals(200, request(cache, "PUT", "/cas/aaaa", "hello again"));
+      assertEquals(200, request(cache, "GET", "/cas/aaaa", null));
+      assertEquals(2, cache.entryStats().get("cas/aaaa").hits());
+      assertEquals(11, cache.size());
+    }
+  }
+
+  private void writeGenrule() throws IOException {
+    driver.scratchFile(
+        "BUILD", "genrule(name = 'out', outs = ['out.txt'], cmd = 'echo cached > $@')");
+  }
+
+  private static int request(HttpRemoteCache cache, String method, String path, String body)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(cache.url() + path).openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(UTF_8));
+      }
+    }
+    int code = connection.getResponseCode();
+    connection.disconnect();
+    return code;
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.file.Files;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Tests that {@link WorkspaceDriver#reuseWarmServers()} keeps one server for the whole class. */
+public class WarmServerTest extends BazelBaseTestCase {
+
+  private static String serverPid = null;
+
+  @BeforeClass
+  public static void reuseWarmServers() {
+    WorkspaceDriver.reuseWarmServers();
+  }
+
+  @Test
+  public void testFirstMethod() throws Exception {
+    checkServerIsReusedAndWorkspaceIsClean("first");
+  }
+
+  @Test
+  public void testSecondMethod() throws Exception {
+    checkServerIsReusedAndWorkspaceIsClean("second");
+  }
+
+  private void checkServerIsReusedAndWorkspaceIsClean(String marker) throws Exception {
+    assertFalse(
+        "the workspace should not contain the files of the previous test",
+        Files.exists(driver.currentWorkspace().resolve("marker")));
+    driver.scratchFile("marker", marker);
+
+    BazelCommand cmd =
+        driver.bazelWithoutJavaBaseConfig("info", "server_pid").mustRunSuccessfully();
+    String pid = cmd.outputLines().get(0);
+    if (serverPid == null) {
+      serverPid = pid;
+    } else {
+      assertEquals("the server should be reused across test methods", serverPid, pid);
+    }
+  }
+}
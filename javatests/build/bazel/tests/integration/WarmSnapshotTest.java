@@ -0,0 +1,46 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.bazel.tests.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Tests {@link WorkspaceDriver#snapshot()} and {@link WorkspaceDriver#restore(WarmSnapshot)}. */
+public class WarmSnapshotTest extends BazelBaseTestCase {
+
+  @Test
+  public void testRestoredWorkspaceStartsFromTheWarmBuild() throws Exception {
+    driver.scratchFile("input.txt", "input");
+    driver.scratchFile(
+        "BUILD",
+        "genrule(name = 'a', srcs = ['input.txt'], outs = ['a.txt'], cmd = 'cp $< $@')",
+        "genrule(name = 'b', srcs = ['input.txt'], outs = ['b.txt'], cmd = 'cp $< $@')");
+    driver.bazelWithoutJavaBaseConfig("build", "//...").mustRunSuccessfully();
+    WarmSnapshot snapshot = driver.snapshot();
+
+    driver.restore(snapshot);
+    BazelCommand warm = driver.bazelWithoutJavaBaseConfig("build", "//...").mustRunSuccessfully();
+    driver.scratchFile(
+        "BUILD",
+        "genrule(name = 'a', srcs = ['input.txt'], outs = ['a.txt'], cmd = 'cp $< $@')",
+        "genrule(name = 'b', srcs = ['input.txt'], outs = ['b.txt'], cmd = 'cat $< > $@')");
+    BazelCommand incremental =
+        driver.bazelWithoutJavaBaseConfig("build", "//...").mustRunSuccessfully();
+
+    assertEquals(warm.toString(), 0, warm.cacheMisses());
+    assertEquals(incremental.toString(), 1, incremental.cacheMisses());
+  }
+}
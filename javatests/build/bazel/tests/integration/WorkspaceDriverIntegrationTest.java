@@ -1,15 +1,21 @@
 package build.bazel.tests.integration;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -149,6 +155,139 @@ public class WorkspaceDriverIntegrationTest extends BazelBaseTestCase {
     driver.bazelWithoutJavaBaseConfig("query","//:foo").mustRunSuccessfully();
   }
 
+  @Test
+  public void testOutputListenersReceiveTheOutputLines() throws Exception {
+    driver.scratchFile("BUILD.bazel", shTest("foo"));
+    List<String> streamed = Collections.synchronizedList(new ArrayList<>());
+    BazelCommand cmd =
+        driver
+            .bazelWithoutJavaBaseConfig("query", "//:foo")
+            .withOutputListener(streamed::add)
+            .mustRunSuccessfully();
+    assertEquals(cmd.outputLines(), streamed);
+  }
+
+  @Test
+  public void testOutputMatcherAssertions() throws Exception {
+    driver.scratchFile(
+        "BUILD.bazel",
+        Stream.concat(shTest("foo").stream(), shTest("bar").stream()).collect(Collectors.toList()));
+    driver
+        .bazelWithoutJavaBaseConfig("query", "//...")
+        .mustRunSuccessfully()
+        .assertOutputLinesMatchAll(
+            OutputMatcher.builder().containing("//:foo").matching("^//:ba[rz]$").build())
+        .assertErrorLinesMatchNone(OutputMatcher.builder().containing("ERROR:").build());
+  }
+
+  @Test
+  public void testNoOutputPumpIsLeftRunning() throws Exception {
+    driver.scratchFile("BUILD.bazel", shTest("foo"));
+    driver.bazelWithoutJavaBaseConfig("query", "//:foo").mustRunSuccessfully();
+    driver.bazelWithoutJavaBaseConfig("query", "//:bar").run();
+    assertEquals(0, Command.activePumps());
+  }
+
+  @Test
+  public void testConcurrentInvocationsInDifferentWorkspaces() throws Exception {
+    List<CompletableFuture<BazelCommand>> invocations = new ArrayList<>();
+    for (String name : Arrays.asList("a", "b", "c")) {
+      driver.newWorkspace();
+      driver.scratchFile("BUILD.bazel", shTest(name));
+      invocations.add(driver.bazelWithoutJavaBaseConfig("query", "//...").runAsync());
+    }
+    for (int i = 0; i < invocations.size(); i++) {
+      BazelCommand cmd = invocations.get(i).get();
+      assertEquals(0, cmd.exitCode());
+      assertEquals(Collections.singletonList("//:" + "abc".charAt(i)), cmd.outputLines());
+    }
+  }
+
+  @Test
+  public void testSpilledOutputIsReadBack() throws Exception {
+    driver.scratchFile(
+        "BUILD.bazel",
+        Stream.of("a", "b", "c")
+            .flatMap(name -> shTest(name).stream())
+            .collect(Collectors.toList()));
+    BazelCommand cmd =
+        driver
+            .bazelWithoutJavaBaseConfig("query", "//...")
+            .withOutputSpilledAfter(1)
+            .mustRunSuccessfully();
+    assertEquals(Arrays.asList("//:a", "//:b", "//:c"), sorted(cmd.outputLines()));
+    try (Stream<String> lines = cmd.outputLinesStream()) {
+      assertEquals(3, lines.count());
+    }
+  }
+
+  @Test
+  public void testAbortOnLineTerminatesTheInvocation() throws Exception {
+    driver.scratchFile("BUILD.bazel", shBinary("hang"));
+    driver.scratchExecutableFile("hang.sh", "#!/bin/bash", "echo 'fatal: giving up'", "sleep 600");
+    BazelCommand cmd =
+        driver
+            .bazel("run", "//:hang")
+            .abortOn(line -> line.contains("fatal: giving up"))
+            .run();
+    assertTrue(cmd.aborted());
+    assertNotEquals(0, cmd.exitCode());
+  }
+
+  @Test
+  public void testTimeoutKillsAHangingInvocation() throws Exception {
+    driver.scratchFile("BUILD.bazel", shBinary("hang"));
+    driver.scratchExecutableFile("hang.sh", "#!/bin/bash", "sleep 600");
+    BazelCommand cmd =
+        driver.bazel("run", "//:hang").withTimeout(Duration.ofSeconds(30)).run();
+    assertTrue(cmd.timedOut());
+    assertFalse(cmd.timeoutDiagnostics().isEmpty());
+  }
+
+  @Test
+  public void testBatchModeDoesNotLeaveAServer() throws Exception {
+    driver.scratchFile("BUILD.bazel", shTest("foo"));
+    driver.bazelWithoutJavaBaseConfig("query", "//:foo").inBatchMode(true).mustRunSuccessfully();
+    assertFalse(Files.exists(serverPidFile()));
+  }
+
+  @Test
+  public void testTearDownShutsTheServerDown() throws Exception {
+    driver.scratchFile("BUILD.bazel", shTest("foo"));
+    driver.bazelWithoutJavaBaseConfig("query", "//:foo").mustRunSuccessfully();
+    assertTrue(Files.exists(serverPidFile()));
+    driver.tearDown();
+    assertFalse(Files.exists(serverPidFile()));
+  }
+
+  @Test
+  public void testBazelIsExtractedOnceInASharedInstallBase() throws Exception {
+    Path installRoot = WorkspaceDriver.temporaryDirectory().resolve("install");
+    String digest = Digests.sha256(driver.bazelBinPath());
+    Path installBase = installRoot.resolve(digest);
+    assertTrue(driver.startupOptions().contains("--install_base=" + installBase));
+    assertTrue(Files.exists(installRoot.resolve(digest + ".complete")));
+    // Whether it was copied from the install base extracted by the bazel_binary repository rule
+    // or extracted by the test, it is writable even when the test runs in a sandbox, and a server
+    // starts from it.
+    assertFalse(Files.isSymbolicLink(installBase));
+    assertTrue(Files.isWritable(installBase));
+    BazelCommand cmd =
+        driver.bazelWithoutJavaBaseConfig("info", "install_base").mustRunSuccessfully();
+    assertEquals(installBase.toRealPath(), Paths.get(cmd.outputLines().get(0)).toRealPath());
+  }
+
+  private Path serverPidFile() throws IOException {
+    return WorkspaceDriver.outputBase(
+            WorkspaceDriver.temporaryDirectory(), driver.currentWorkspace())
+        .resolve("server")
+        .resolve("server.pid.txt");
+  }
+
+  private static List<String> sorted(List<String> lines) {
+    return lines.stream().sorted().collect(Collectors.toList());
+  }
+
   private List<String> shellTestingEnvironmentVariable(String key, String val) {
     return Arrays.asList("#!/bin/bash", "test \"$" + key + "\" = \"" + val + "\"", "");
   }
@@ -10,15 +10,30 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 public class WorkspaceDriverTest {
+  // The sha256 digest of "content".
+  private static final String CONTENT_SHA256 =
+      "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+
   private WorkspaceDriver driver = new WorkspaceDriver();
 
   @BeforeClass
@@ -72,6 +87,24 @@ public class WorkspaceDriverTest {
         is(not(optionalWithValue(endsWith(knownFile)))));
   }
 
+  @Test
+  public void copyDirectoryFromRunfilesInLinkModeNeverWritesToTheRunfiles() throws IOException {
+    String directory = "build_bazel_integration_testing/javatests/build/bazel/tests/integration";
+    String file = "WorkspaceDriverTest/" + jarNameAccordingToCurrentBazelVersion();
+    Path runfile = WorkspaceDriver.runfile(directory, file);
+    long size = Files.size(runfile);
+
+    driver.copyDirectoryFromRunfiles(directory, directory, WorkspaceDriver.CopyMode.LINK);
+    driver.scratchFile(file, "replaced");
+
+    org.hamcrest.MatcherAssert.assertThat(
+        "the workspace file should be replaced",
+        readFileContent(driver.currentWorkspace().resolve(file)),
+        is(equalTo("replaced")));
+    org.hamcrest.MatcherAssert.assertThat(
+        "the runfile should not change", Files.size(runfile), is(equalTo(size)));
+  }
+
   @Test(expected = WorkspaceDriver.BazelWorkspaceDriverException.class)
   public void copyDirectoryFromRunfilesShouldThrowIfNotDirectory() throws IOException {
     String knownFile = "build_bazel_integration_testing/javatests/build/bazel/tests/integration/WorkspaceDriverTest/" + jarNameAccordingToCurrentBazelVersion();
@@ -137,6 +170,244 @@ public class WorkspaceDriverTest {
         "Workspace should be cleaned", fullPath, is(emptyOptional()));
   }
 
+  @Test
+  public void scratchFilesWritesAllTheFiles() throws IOException {
+    WorkspaceFiles.Builder files = WorkspaceFiles.builder();
+    for (int i = 0; i < 100; i++) {
+      files.file("pkg" + i + "/BUILD", "# package " + i);
+    }
+    files.executableFile("pkg0/tool.sh", "#!/bin/sh");
+
+    driver.scratchFiles(files.build());
+
+    org.hamcrest.MatcherAssert.assertThat(
+        readFileContent(driver.currentWorkspace().resolve("pkg99/BUILD")),
+        is(equalTo("# package 99")));
+    org.hamcrest.MatcherAssert.assertThat(
+        isExecutable(driver.currentWorkspace().resolve("pkg0/tool.sh")), is(true));
+  }
+
+  @Test
+  public void unchangedWritesAreSkippedAndLeftOutOfTheChangedFiles() throws IOException {
+    driver.skipUnchangedWrites(true);
+    driver.scratchFile("same.txt", "content");
+    driver.scratchFile("changed.txt", "content");
+    driver.takeChangedFiles(driver.currentWorkspace());
+
+    driver.scratchFile("same.txt", "content");
+    driver.scratchFile("changed.txt", "other content");
+
+    org.hamcrest.MatcherAssert.assertThat(
+        driver.changedFiles(), is(equalTo(Collections.singleton(Paths.get("changed.txt")))));
+  }
+
+  @Test
+  public void newWorkspaceStartsAsACloneOfTheTemplate() throws IOException {
+    driver.scratchFile("pkg/BUILD", "filegroup(name = 'template')");
+    driver.freezeAsTemplate();
+    try {
+      driver.newWorkspace();
+      driver.scratchFile("pkg/BUILD", "filegroup(name = 'changed')");
+      driver.newWorkspace();
+
+      org.hamcrest.MatcherAssert.assertThat(
+          "the template should not be changed by the previous workspace",
+          readFileContent(driver.currentWorkspace().resolve("pkg/BUILD")),
+          is(equalTo("filegroup(name = 'template')")));
+    } finally {
+      WorkspaceDriver.discardTemplate();
+    }
+  }
+
+  @Test
+  public void unchangedExecutableWriteDoesNotChangeTheModeOfTheTemplate() throws IOException {
+    driver.scratchFile("pkg/tool.sh", "echo template");
+    driver.freezeAsTemplate();
+    try {
+      driver.newWorkspace();
+      driver.skipUnchangedWrites(true);
+      driver.scratchExecutableFile("pkg/tool.sh", "echo template");
+
+      org.hamcrest.MatcherAssert.assertThat(
+          isExecutable(driver.currentWorkspace().resolve("pkg/tool.sh")), is(true));
+      driver.newWorkspace();
+      org.hamcrest.MatcherAssert.assertThat(
+          "the template should not be made executable by the previous workspace",
+          isExecutable(driver.currentWorkspace().resolve("pkg/tool.sh")),
+          is(false));
+    } finally {
+      WorkspaceDriver.discardTemplate();
+    }
+  }
+
+  @Test
+  public void spilledLinesAreReadBackWithoutKeepingTheSpillFileOpen() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "spill");
+    OutputCapture capture = OutputCapture.spillingAfter(2, directory, "stdout");
+    for (int i = 0; i < 1000; i++) {
+      capture.add("line" + i);
+    }
+    capture.close();
+    List<String> lines = capture.lines();
+
+    assertTrue(lines.stream().anyMatch(line -> line.equals("line500")));
+    org.hamcrest.MatcherAssert.assertThat(lines.get(999), is(equalTo("line999")));
+    org.hamcrest.MatcherAssert.assertThat(lines.get(3), is(equalTo("line3")));
+    org.hamcrest.MatcherAssert.assertThat(lines.size(), is(equalTo(1000)));
+    // Neither the stopped stream nor get() keep the file open, so it can be deleted on Windows.
+    Files.delete(capture.spillFile());
+  }
+
+  @Test
+  public void probeCacheRunsEachProbeOnceAcrossInstances() throws Exception {
+    Path file =
+        Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "probes")
+            .resolve("probes.properties");
+    AtomicInteger runs = new AtomicInteger();
+    ProbeCache.Probe probe = () -> "value" + runs.incrementAndGet();
+
+    new ProbeCache(file).get("key", probe);
+    String cached = new ProbeCache(file).get("key", probe);
+
+    org.hamcrest.MatcherAssert.assertThat(
+        "the probed value should be read back", cached, is(equalTo("value1")));
+    org.hamcrest.MatcherAssert.assertThat(
+        "the probe should only run once", runs.get(), is(equalTo(1)));
+  }
+
+  @Test
+  public void probeCacheRunsDistinctProbesConcurrentlyAndWritesThemOnFlush() throws Exception {
+    Path file =
+        Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "probes")
+            .resolve("probes.properties");
+    ProbeCache cache = new ProbeCache(file);
+    CountDownLatch bothRunning = new CountDownLatch(2);
+    ProbeCache.Probe probe =
+        () -> {
+          bothRunning.countDown();
+          // Holding a lock while probing would keep the other probe from starting.
+          if (!bothRunning.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("the probes did not run concurrently");
+          }
+          return "value";
+        };
+
+    CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return cache.getUnsaved("first", probe);
+              } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    String second = cache.getUnsaved("second", probe);
+
+    org.hamcrest.MatcherAssert.assertThat(first.get(), is(equalTo("value")));
+    org.hamcrest.MatcherAssert.assertThat(second, is(equalTo("value")));
+    assertTrue("the manifest should only be written on flush", !Files.exists(file));
+    cache.flush();
+    AtomicInteger runs = new AtomicInteger();
+    String cached = new ProbeCache(file).get("second", () -> "other" + runs.incrementAndGet());
+    org.hamcrest.MatcherAssert.assertThat(cached, is(equalTo("value")));
+    org.hamcrest.MatcherAssert.assertThat(runs.get(), is(equalTo(0)));
+  }
+
+  @Test
+  public void repositoryCacheCloneHasTheContentOfTheOriginal() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "clones");
+    Path original = directory.resolve(CONTENT_SHA256);
+    Files.write(original, "content".getBytes(StandardCharsets.UTF_8));
+    RepositoryCache cache = new RepositoryCache(directory.resolve("cache"));
+
+    cache.put(original);
+    cache.freeze();
+
+    Path entry =
+        directory.resolve("cache/content_addressable/sha256/" + CONTENT_SHA256 + "/file");
+    org.hamcrest.MatcherAssert.assertThat(
+        "the cache entry should have the content of the original",
+        readFileContent(entry),
+        is(equalTo("content")));
+    assertTrue(
+        "freezing the cache should not change the original, with "
+            + cache.populationStrategy(),
+        Files.isWritable(original));
+  }
+
+  @Test
+  public void repositoryCacheDoesNotHardLinkFilesOutsideOfTheTest() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "foreign");
+    Path original = Files.createDirectories(directory.resolve("outer")).resolve(CONTENT_SHA256);
+    Files.write(original, "content".getBytes(StandardCharsets.UTF_8));
+    Path test = Files.createDirectories(directory.resolve("test"));
+    RepositoryCache cache = new RepositoryCache(test.resolve("cache"));
+
+    cache.put(original);
+
+    Path entry = test.resolve("cache/content_addressable/sha256/" + CONTENT_SHA256 + "/file");
+    assertTrue(
+        "the cache entry should not share its inode with the original, with "
+            + cache.populationStrategy(),
+        cache.populationStrategy() != CloneStrategy.HARDLINK
+            && !Files.isSameFile(original, entry));
+  }
+
+  @Test(expected = RepositoryCache.ChecksumMismatchException.class)
+  public void repositoryCacheRejectsAFileNotMatchingItsDigest() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "corrupt");
+    Path corrupt = directory.resolve(CONTENT_SHA256);
+    Files.write(corrupt, "not the content".getBytes(StandardCharsets.UTF_8));
+
+    new RepositoryCache(directory.resolve("cache")).putAll(Collections.singletonList(corrupt));
+  }
+
+  @Test
+  public void sharedContentStoreEvictsTheLeastRecentlyUsedEntries() throws Exception {
+    Path directory = Files.createTempDirectory(WorkspaceDriver.temporaryDirectory(), "store");
+    Path source = directory.resolve("source");
+    Files.write(source, "content".getBytes(StandardCharsets.UTF_8));
+    SharedContentStore store = new SharedContentStore(directory.resolve("store"), 10);
+
+    Path older = store.put("older", source);
+    Files.setLastModifiedTime(older.getParent(), FileTime.fromMillis(0));
+    Path newer = store.put("newer", source);
+    store.evict();
+
+    assertTrue("the least recently used entry should be evicted", !Files.exists(older));
+    assertTrue("the most recently used entry should be kept", Files.exists(newer));
+  }
+
+  @Test
+  public void diagnosticReportKeepsTheHeadAndTheTailOfTheOutput() {
+    DiagnosticReport report =
+        new DiagnosticReport(
+            Collections.singletonList("build"),
+            "1",
+            () -> IntStream.range(0, 100000).mapToObj(i -> "line " + i),
+            Stream::empty,
+            driver.currentWorkspace());
+
+    String rendered = report.render(new DiagnosticReport.Limits(1, 1, 100, 10));
+
+    assertTrue(rendered, rendered.contains("line 0\n"));
+    assertTrue(rendered, rendered.contains("[... 99998 lines skipped ...]"));
+    assertTrue(rendered, rendered.contains("line 99999\n"));
+  }
+
+  @Test
+  public void processSummaryCountsCacheHitsAndMisses() {
+    ProcessSummary summary =
+        ProcessSummary.parse(
+            Arrays.asList(
+                "INFO: Build completed successfully",
+                "INFO: 6 processes: 3 disk cache hit, 1 internal, 2 linux-sandbox."));
+
+    org.hamcrest.MatcherAssert.assertThat(summary.total(), is(equalTo(6)));
+    org.hamcrest.MatcherAssert.assertThat(summary.cacheHits(), is(equalTo(3)));
+    org.hamcrest.MatcherAssert.assertThat(summary.cacheMisses(), is(equalTo(2)));
+  }
+
   private Boolean isExecutable(Path path) {
     return Files.isExecutable(path);
   }
@@ -75,8 +75,60 @@ def _get_installer(rctx):
     args["sha256"] = BAZEL_HASH_DICT[version][platform]
   rctx.download_and_extract(**args)
 
+# The suffix appended to the BUILD files of the extracted install base, which
+# would otherwise be packages of this repository that a glob does not cross.
+# Tests restore the original names when they copy the install base.
+_RENAMED_BUILD_FILE_SUFFIX = ".install_base"
+
+def _extract_install_base(rctx):
+  """Extracts the downloaded Bazel into the install_base directory.
+
+  Tests then copy it and pass the copy as --install_base instead of extracting
+  Bazel at runtime. Returns True if the extraction succeeded, the tests extract
+  Bazel themselves otherwise, as they do on Windows, where the BUILD files of
+  the install base are not renamed.
+  """
+  if _is_windows(rctx):
+    return False
+  bazel = rctx.path("bazel-real")
+  bazelrc = "/dev/null"
+  output_user_root = rctx.path("output_user_root")
+  result = rctx.execute([
+      bazel,
+      "--output_user_root=%s" % output_user_root,
+      "--install_base=%s" % rctx.path("install_base"),
+      "--nomaster_bazelrc",
+      "--batch",
+      "--bazelrc=" + bazelrc,
+      "help",
+  ], timeout = 600)
+  rctx.execute(["rm", "-rf", str(output_user_root)])
+  if result.return_code != 0:
+    print("Could not extract Bazel %s, it will be extracted by each test: %s" %
+          (rctx.attr.version, result.stderr))
+    return False
+
+  # mv keeps the modification times, which the Bazel client checks.
+  result = rctx.execute([
+      "sh",
+      "-c",
+      "find \"$1\" -type f \\( -name BUILD -o -name BUILD.bazel \\) " +
+      "-exec sh -c 'for f; do mv \"$f\" \"$f%s\"; done' sh {} +" %
+      _RENAMED_BUILD_FILE_SUFFIX,
+      "sh",
+      str(rctx.path("install_base")),
+  ])
+  if result.return_code != 0:
+    print("Could not rename the BUILD files of the install base of Bazel %s: %s" %
+          (rctx.attr.version, result.stderr))
+    rctx.execute(["rm", "-rf", str(rctx.path("install_base"))])
+    return False
+  rctx.file("install_base.complete", rctx.attr.version)
+  return True
+
 def _bazel_repository_impl(rctx):
   _get_installer(rctx)
+  extracted = _extract_install_base(rctx)
   rctx.file("WORKSPACE", "workspace(name='%s')" % rctx.attr.name)
   rctx.file("BUILD", """
 filegroup(
@@ -84,8 +136,19 @@ filegroup(
   srcs = select({
     "@bazel_tools//src/conditions:windows" : ["bazel.exe"],
     "//conditions:default": ["bazel-real","bazel"],
-  }),
-  visibility = ["//visibility:public"])""")
+  }) + [":install_base"],
+  visibility = ["//visibility:public"])
+
+# The files of the install base pre-extracted when fetching the repository, and
+# the marker written once it is complete. Its BUILD files are renamed with the
+# %s suffix. Tests copy it to a writable location before starting
+# Bazel from it.
+filegroup(
+  name = "install_base",
+  srcs = %s,
+  visibility = ["//visibility:public"])""" % (
+      _RENAMED_BUILD_FILE_SUFFIX,
+      '["install_base.complete"] + glob(["install_base/**"])' if extracted else "[]"))
 
 bazel_binary = repository_rule(
     attrs = {
@@ -96,6 +159,9 @@ bazel_binary = repository_rule(
 
 """Download a bazel binary for integration test.
 
+The binary is also extracted into an install base, so that the tests do not
+extract it again at runtime.
+
 Args:
   version: the version of Bazel to download.
 